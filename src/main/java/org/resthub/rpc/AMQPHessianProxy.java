@@ -20,26 +20,26 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeoutException;
-import java.util.zip.Deflater;
-import java.util.zip.DeflaterOutputStream;
-import java.util.zip.Inflater;
-import java.util.zip.InflaterInputStream;
 
 import org.springframework.amqp.core.Message;
-import org.springframework.amqp.core.MessageProperties;
-import org.springframework.amqp.rabbit.connection.ConnectionFactory;
-import org.springframework.amqp.rabbit.core.RabbitTemplate;
 
 import com.caucho.hessian.client.HessianRuntimeException;
 import com.caucho.hessian.io.AbstractHessianInput;
 import com.caucho.hessian.io.AbstractHessianOutput;
 import com.caucho.hessian.io.HessianProtocolException;
-import com.caucho.services.server.AbstractSkeleton;
 
 /**
  * Proxy implementation for Hessian clients. Applications will generally
@@ -53,11 +53,74 @@ public class AMQPHessianProxy implements InvocationHandler
 {
     private AMQPHessianProxyFactory _factory;
     
+    private String _exchange;
+    private String _routingKey;
+    
+    /** The name of the service sent with the requests */
+    private String _serviceName;
+    
+    /** The router selecting the routing key of the requests, null if it's fixed */
+    private RequestRouter _router;
+    
+    /** The destination of the requests, distinguishing the cached results of the proxies of a factory */
+    private String _destination;
+    
+    /** The metadata of the proxied methods */
+    private Map<Method, MethodDescriptor> _methods = Collections.emptyMap();
+    
+    /** The replies of the requests in flight of the methods annotated with SingleFlight */
+    private final ConcurrentMap<RequestKey, HessianFuture<Message>> _inFlight 
+            = new ConcurrentHashMap<RequestKey, HessianFuture<Message>>();
+    
     AMQPHessianProxy(){}
 
     AMQPHessianProxy(AMQPHessianProxyFactory factory)
     {
         _factory = factory;
+        
+        Class<?> api = factory.getServiceInterface();
+        _exchange = factory.getRequestExchangeName(api);
+        _routingKey = factory.getRequestQueueName(api);
+        _serviceName = api.getSimpleName();
+        _destination = _exchange + "/" + _routingKey + "/" + _serviceName;
+        if (factory.isAffinity())
+        {
+            _exchange = factory.getAffinityExchangeName(api);
+            _router = new AffinityRouter();
+        }
+        else if (factory.getShards() > 1)
+        {
+            _router = new ShardRouter(_routingKey, factory.getShards());
+        }
+        
+        Map<Method, MethodDescriptor> methods = new HashMap<Method, MethodDescriptor>();
+        addMethods(methods, Object.class.getMethods());
+        addMethods(methods, api.getMethods());
+        _methods = methods;
+    }
+    
+    private void addMethods(Map<Method, MethodDescriptor> methods, Method[] declared)
+    {
+        for (Method method : declared)
+        {
+            methods.put(method, new MethodDescriptor(method, _factory.isOverloadEnabled(), _exchange, _routingKey, 
+                    _router, _factory.getMethodOptions(method)));
+        }
+    }
+    
+    /**
+     * Returns the metadata of the method.
+     */
+    private MethodDescriptor getDescriptor(Method method)
+    {
+        MethodDescriptor descriptor = _methods.get(method);
+        if (descriptor == null)
+        {
+            descriptor = new MethodDescriptor(method, _factory.isOverloadEnabled(), _exchange, _routingKey, 
+                    _router, _factory.getMethodOptions(method));
+        }
+        
+        return descriptor;
     }
 
     /**
@@ -69,154 +132,408 @@ public class AMQPHessianProxy implements InvocationHandler
      */
     public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
     {
-        String methodName = method.getName();
-        Class<?>[] params = method.getParameterTypes();
-
-        // equals and hashCode are special cased
-        if (methodName.equals("equals") && params.length == 1 && params[0].equals(Object.class))
+        MethodDescriptor descriptor = getDescriptor(method);
+        
+        switch (descriptor.getKind())
+        {
+            case EQUALS:
+                Object value = args[0];
+                if (value == null || !Proxy.isProxyClass(value.getClass()))
+                {
+                    return Boolean.FALSE;
+                }
+                
+                AMQPHessianProxy handler = (AMQPHessianProxy) Proxy.getInvocationHandler(value);
+                
+                return _factory.equals(handler._factory);
+                
+            case HASHCODE:
+                return _factory.hashCode();
+                
+            case TOSTRING:
+                return "[HessianProxy " + proxy.getClass() + "]";
+                
+            default:
+                break;
+        }
+        
+        byte[] request = createRequestBody(descriptor, args);
+        RequestKey key = descriptor.getCacheTtl() > 0 || descriptor.isSingleFlight() 
+                ? new RequestKey(_destination, request) : null;
+        
+        ResultCache cache = descriptor.getCacheTtl() > 0 ? _factory.getResultCache() : null;
+        if (cache != null)
         {
-            Object value = args[0];
-            if (value == null || !Proxy.isProxyClass(value.getClass()))
+            byte[] cached = cache.get(key);
+            if (cached != null)
             {
-                return Boolean.FALSE;
+                // each hit returns a new copy of the result
+                Object value = readReply(cached, descriptor.getReturnType());
+                if (descriptor.isAsynchronous())
+                {
+                    HessianFuture<Object> result = new HessianFuture<Object>();
+                    result.set(value);
+                    return result;
+                }
+                return value;
             }
-
-            AMQPHessianProxy handler = (AMQPHessianProxy) Proxy.getInvocationHandler(value);
-
-            return _factory.equals(handler._factory);
         }
-        else if (methodName.equals("hashCode") && params.length == 0)
+        
+        if (descriptor.isAsynchronous())
         {
-            return _factory.hashCode();
+            HessianFuture<Message> reply = descriptor.isSingleFlight() ? sendShared(descriptor, args, request, key) 
+                    : _factory.sendRequestAsync(descriptor, getRoutingKey(descriptor, args), _serviceName, request);
+            return readReplyAsync(descriptor, reply, key, cache);
         }
-        else if (methodName.equals("toString") && params.length == 0)
+        
+        Message response;
+        if (descriptor.isSingleFlight())
         {
-            return "[HessianProxy " + proxy.getClass() + "]";
+            response = awaitReply(sendShared(descriptor, args, request, key));
+        }
+        else
+        {
+            response = _factory.sendRequest(descriptor, getRoutingKey(descriptor, args), _serviceName, request);
         }
         
-        ConnectionFactory connectionFactory = _factory.getConnectionFactory();
+        if (response == null) {
+            throw new TimeoutException();
+        }
         
-        try
+        byte[] body = _factory.getReplyBody(response);
+        Object value = readReply(body, descriptor.getReturnType());
+        // the faults aren't cached
+        if (cache != null)
         {
-            Message response = sendRequest(connectionFactory, method, args);
-            
-            if (response == null) {
-                throw new TimeoutException();
+            cache.put(key, body, descriptor.getCacheTtl());
+        }
+        
+        return value;
+    }
+    
+    /**
+     * Returns the routing key of a request, selecting the shard of the
+     * request queue if it's sharded, or the key hashed by the consistent
+     * hash exchange in the affinity mode.
+     * 
+     * @return the routing key, or null if the request is routed without key,
+     *         its routing key is then selected once per message sent
+     */
+    private String getRoutingKey(MethodDescriptor descriptor, Object[] args)
+    {
+        if (_router == null)
+        {
+            return descriptor.getRoutingKey();
+        }
+        if (descriptor.getShardKeyIndex() < 0)
+        {
+            return null;
+        }
+        
+        return _router.getRoutingKey(args, descriptor.getShardKeyIndex());
+    }
+    
+    /**
+     * Invokes a method with each of the argument lists. The calls with the
+     * same shard key, or without key, are sent in a single batch message,
+     * and the results are returned once all the replies are received.
+     * 
+     * @param method the method invoked
+     * @param argsList the arguments of the calls
+     * @return the completed results of the calls, in order
+     */
+    List<HessianFuture<Object>> invokeAll(Method method, List<Object[]> argsList) throws IOException, InterruptedException
+    {
+        MethodDescriptor descriptor = getDescriptor(method);
+        if (descriptor.getKind() != MethodDescriptor.Kind.REMOTE)
+        {
+            throw new IllegalArgumentException("The method " + method + " isn't a remote method");
+        }
+        
+        List<HessianFuture<Object>> results = new ArrayList<HessianFuture<Object>>(argsList.size());
+        Map<String, List<Integer>> groups = new LinkedHashMap<String, List<Integer>>();
+        String bulkRoutingKey = null;
+        for (int i = 0; i < argsList.size(); i++)
+        {
+            results.add(new HessianFuture<Object>());
+            String routingKey = getRoutingKey(descriptor, argsList.get(i));
+            if (routingKey == null)
+            {
+                // the calls without key are sent together
+                if (bulkRoutingKey == null)
+                {
+                    bulkRoutingKey = descriptor.nextRoutingKey();
+                }
+                routingKey = bulkRoutingKey;
             }
-            
-            MessageProperties props = response.getMessageProperties();
-            boolean compressed = "deflate".equals(props.getContentEncoding());
-            
-            AbstractHessianInput in;
-            
-            InputStream is = new ByteArrayInputStream(response.getBody());
-            if (compressed) {
-                is = new InflaterInputStream(is, new Inflater(true));
+            List<Integer> group = groups.get(routingKey);
+            if (group == null)
+            {
+                group = new ArrayList<Integer>();
+                groups.put(routingKey, group);
+            }
+            group.add(i);
+        }
+        
+        // all the batches are sent before waiting for the replies
+        Map<String, HessianFuture<Message>> replies = new LinkedHashMap<String, HessianFuture<Message>>();
+        for (Map.Entry<String, List<Integer>> group : groups.entrySet())
+        {
+            List<byte[]> requests = new ArrayList<byte[]>(group.getValue().size());
+            List<Long> deadlines = new ArrayList<Long>(group.getValue().size());
+            long deadline = System.currentTimeMillis() + descriptor.getTimeout();
+            for (int index : group.getValue())
+            {
+                requests.add(createRequestBody(descriptor, argsList.get(index)));
+                deadlines.add(deadline);
             }
             
-            int code = is.read();
-
-            if (code == 'H')
+            Message message = _factory.createRequestMessage(_serviceName, BatchCodec.encodeRequests(requests, deadlines), 
+                    descriptor.isCompressed(), descriptor.getTimeout(), descriptor.getPriority());
+            message.getMessageProperties().setHeader(HessianHeaders.BATCH, requests.size());
+            replies.put(group.getKey(), _factory.send(descriptor.getExchange(), group.getKey(), message, descriptor.getTimeout()));
+        }
+        
+        for (Map.Entry<String, List<Integer>> group : groups.entrySet())
+        {
+            List<Integer> indexes = group.getValue();
+            try
             {
-                int major = is.read();
-                int minor = is.read();
-
-                in = _factory.getHessian2Input(is);
-
-                return in.readReply(method.getReturnType());
+                Message reply = replies.get(group.getKey()).get();
+                List<byte[]> bodies = _factory.getBatchReplies(reply, indexes.size());
+                for (int i = 0; i < indexes.size(); i++)
+                {
+                    completeBulkResult(results.get(indexes.get(i)), bodies.get(i), descriptor.getReturnType());
+                }
             }
-            else if (code == 'r')
+            catch (ExecutionException e)
             {
-                int major = is.read();
-                int minor = is.read();
-
-                in = _factory.getHessianInput(is);
-
-                in.startReplyBody();
-
-                Object value = in.readObject(method.getReturnType());
-
-                in.completeReply();
-
-                return value;
+                failBulkResults(results, indexes, e.getCause());
             }
-            else
+            catch (IOException e)
             {
-                throw new HessianProtocolException("'" + (char) code + "' is an unknown code");
+                failBulkResults(results, indexes, e);
             }
         }
-        catch (HessianProtocolException e)
+        
+        return results;
+    }
+    
+    /**
+     * Completes the result of a call of a bulk invocation with its reply.
+     */
+    private void completeBulkResult(HessianFuture<Object> result, byte[] reply, Class<?> returnType)
+    {
+        if (reply.length == 0)
         {
-            throw new HessianRuntimeException(e);
+            // dropped by the endpoint after its deadline
+            result.setException(new TimeoutException());
+            return;
+        }
+        
+        try
+        {
+            result.set(readReply(new ByteArrayInputStream(reply), returnType));
+        }
+        catch (Throwable e)
+        {
+            result.setException(e);
+        }
+    }
+    
+    private void failBulkResults(List<HessianFuture<Object>> results, List<Integer> indexes, Throwable cause)
+    {
+        for (int index : indexes)
+        {
+            results.get(index).setException(cause);
         }
     }
     
     /**
-     * Send request message
-     * 
-     * @param connectionFactory Spring connection factory
-     * @param method Method to call
-     * @param args Method arguments
-     * @return Response to the sent request
-     * @throws IOException
+     * Publishes the request unless an identical request is in flight, and
+     * returns the future reply of the request sent.
      */
-    private Message sendRequest(ConnectionFactory connectionFactory, Method method, Object[] args) throws IOException
+    private HessianFuture<Message> sendShared(MethodDescriptor descriptor, Object[] args, byte[] request, 
+            final RequestKey key) throws IOException
     {
-        RabbitTemplate template = this._factory.getTemplate();
+        final HessianFuture<Message> shared = new HessianFuture<Message>();
+        HessianFuture<Message> pending = _inFlight.putIfAbsent(key, shared);
+        if (pending != null)
+        {
+            return pending;
+        }
         
-        byte[] payload = createRequestBody(method, args);
-
-        MessageProperties messageProperties = new MessageProperties();
-        messageProperties.setContentType("x-application/hessian");
-        if (_factory.isCompressed())
+        HessianFuture<Message> reply;
+        try
         {
-            messageProperties.setContentEncoding("deflate");
+            reply = _factory.sendRequestAsync(descriptor, getRoutingKey(descriptor, args), _serviceName, request);
+        }
+        catch (IOException e)
+        {
+            _inFlight.remove(key, shared);
+            shared.setException(e);
+            throw e;
         }
         
-        Message message = new Message(payload, messageProperties);
-        Message response = template.sendAndReceive(
-                _factory.getRequestExchangeName(_factory.getServiceInterface()),
-                _factory.getRequestQueueName(_factory.getServiceInterface()),
-                message);
+        reply.addCallback(new HessianCallback<Message>()
+        {
+            public void onSuccess(Message response)
+            {
+                _inFlight.remove(key, shared);
+                shared.set(response);
+            }
+            
+            public void onFailure(Throwable cause)
+            {
+                _inFlight.remove(key, shared);
+                shared.setException(cause);
+            }
+        });
         
-        return response;
+        return shared;
     }
     
     /**
-     * Create the request message body
-     * @param method
-     * @param args
-     * @return
-     * @throws IOException
+     * Waits for a reply, the future fails with a TimeoutException if no
+     * reply is received within the timeout of the method.
+     * 
+     * @return the reply message, or null if it timed out
+     * @throws HessianRuntimeException if the thread is interrupted while waiting for the reply
      */
-    private byte[] createRequestBody(Method method, Object[] args) throws IOException
+    private Message awaitReply(HessianFuture<Message> reply) throws Throwable
     {
-        String methodName = method.getName();
+        try
+        {
+            return reply.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new HessianRuntimeException("Interrupted while waiting for the reply", e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof TimeoutException)
+            {
+                return null;
+            }
+            throw e.getCause();
+        }
+    }
+    
+    /**
+     * Returns a future completed with the value read from the reply. The
+     * calling thread doesn't wait for the reply.
+     */
+    private HessianFuture<Object> readReplyAsync(MethodDescriptor descriptor, HessianFuture<Message> reply, 
+            final RequestKey key, final ResultCache cache)
+    {
+        final Class<?> returnType = descriptor.getReturnType();
+        final long cacheTtl = descriptor.getCacheTtl();
+        final HessianFuture<Object> result = new HessianFuture<Object>();
         
-        if (_factory.isOverloadEnabled() && args != null && args.length > 0)
+        reply.addCallback(new HessianCallback<Message>()
         {
-            methodName = AbstractSkeleton.mangleName(method, false);
+            public void onSuccess(Message response)
+            {
+                try
+                {
+                    byte[] body = _factory.getReplyBody(response);
+                    Object value = readReply(body, returnType);
+                    if (cache != null)
+                    {
+                        cache.put(key, body, cacheTtl);
+                    }
+                    result.set(value);
+                }
+                catch (Throwable e)
+                {
+                    result.setException(e);
+                }
+            }
+            
+            public void onFailure(Throwable cause)
+            {
+                result.setException(cause);
+            }
+        });
+        
+        return result;
+    }
+    
+    /**
+     * Reads the reply
+     * 
+     * @param body the decompressed body of the reply message
+     * @param returnType the type of the value returned
+     * @return the value returned by the remote method
+     * @throws Throwable the exception thrown by the remote method
+     */
+    private Object readReply(byte[] body, Class<?> returnType) throws Throwable
+    {
+        try
+        {
+            return readReply(new ByteArrayInputStream(body), returnType);
+        }
+        catch (HessianProtocolException e)
+        {
+            throw new HessianRuntimeException(e);
         }
+    }
+    
+    /**
+     * Reads the reply body
+     */
+    private Object readReply(InputStream is, Class<?> returnType) throws Throwable
+    {
+        AbstractHessianInput in;
         
-        ByteArrayOutputStream payload = new ByteArrayOutputStream(256);
-        OutputStream os;
-        if (_factory.isCompressed())
+        int code = is.read();
+
+        if (code == 'H')
+        {
+            int major = is.read();
+            int minor = is.read();
+
+            in = _factory.getHessian2Input(is);
+
+            return in.readReply(returnType);
+        }
+        else if (code == 'r')
         {
-            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
-            os = new DeflaterOutputStream(payload, deflater);
+            int major = is.read();
+            int minor = is.read();
+
+            in = _factory.getHessianInput(is);
+
+            in.startReplyBody();
+
+            Object value = in.readObject(returnType);
+
+            in.completeReply();
+
+            return value;
         }
         else
         {
-            os = payload;
+            throw new HessianProtocolException("'" + (char) code + "' is an unknown code");
         }
+    }
+    
+    /**
+     * Create the request message body
+     * @param method
+     * @param args
+     * @return
+     * @throws IOException
+     */
+    private byte[] createRequestBody(MethodDescriptor method, Object[] args) throws IOException
+    {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(256);
         
-        AbstractHessianOutput out = _factory.getHessianOutput(os);
+        AbstractHessianOutput out = _factory.getHessianOutput(payload);
         
-        out.call(methodName, args);
-        if (os instanceof DeflaterOutputStream)
-        {
-            ((DeflaterOutputStream) os).finish();
-        }
+        out.call(method.getName(), args);
         out.flush();
         
         return payload.toByteArray();
@@ -18,25 +18,42 @@ package org.resthub.rpc;
 
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.IOException;
 import java.io.PrintWriter;
+import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
-import java.util.UUID;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.resthub.rpc.compression.CompressionCodec;
+import org.resthub.rpc.compression.CompressionCodecs;
+import org.resthub.rpc.compression.CompressionDictionary;
+import org.resthub.rpc.compression.DeflateCodec;
 import org.springframework.amqp.core.AmqpAdmin;
 import org.springframework.amqp.core.Binding;
 import org.springframework.amqp.core.BindingBuilder;
+import org.springframework.amqp.core.CustomExchange;
 import org.springframework.amqp.core.DirectExchange;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
 import org.springframework.amqp.core.Queue;
 import org.springframework.amqp.rabbit.connection.Connection;
 import org.springframework.amqp.rabbit.connection.ConnectionFactory;
 import org.springframework.amqp.rabbit.connection.ConnectionListener;
 import org.springframework.amqp.rabbit.core.RabbitAdmin;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
-import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
 import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 
+import com.caucho.hessian.client.HessianRuntimeException;
 import com.caucho.hessian.io.AbstractHessianInput;
 import com.caucho.hessian.io.AbstractHessianOutput;
 import com.caucho.hessian.io.Hessian2Input;
@@ -63,18 +80,38 @@ import com.caucho.hessian.io.SerializerFactory;
  */
 public class AMQPHessianProxyFactory implements InitializingBean, DisposableBean
 {
+    /** The reply timeout used when no read timeout is set */
+    private static final long DEFAULT_READ_TIMEOUT = 5000;
+
     private SerializerFactory _serializerFactory;
     private HessianRemoteResolver _resolver;
     private ConnectionFactory connectionFactory;
+    /** Only created for the deprecated getTemplate method */
     private RabbitTemplate template;
     private AmqpAdmin admin;
-    private SimpleMessageListenerContainer listener;
-    private String replyQueueName;
+    private ReplyDispatcher dispatcher;
+    private RequestBatcher batcher;
+    
+    /** The handler of the bulk invocations */
+    private AMQPHessianProxy bulkHandler;
+    private Class<?> bulkInterface;
     private AtomicBoolean initializing = new AtomicBoolean(false);
     
+    /** The interfaces of the proxies created, their queues are declared again when the connection is recreated */
+    private final Set<Class<?>> declaredInterfaces = new CopyOnWriteArraySet<Class<?>>();
+    
+    /** The listener declaring the queues, registered once on the connection factory */
+    private ConnectionListener connectionListener;
+    
     protected Class<?> serviceInterface;
     
     private String queuePrefix;
+    
+    private String queueName;
+    
+    private int shards;
+    
+    private boolean affinity;
 
     private boolean isOverloadEnabled = false;
 
@@ -86,6 +123,33 @@ public class AMQPHessianProxyFactory implements InitializingBean, DisposableBean
     private long readTimeout = -1;
     
     private boolean compressed;
+    
+    private int compressionThreshold;
+    
+    private String compressionEncoding = DeflateCodec.ENCODING;
+    
+    /** The codecs used to compress and decompress the messages */
+    private final CompressionCodecs compressionCodecs = new CompressionCodecs();
+    
+    private String compressionDictionaryId;
+    
+    private boolean directReplyTo;
+    
+    private int maxPriority;
+    
+    private int batchSize;
+    
+    private long batchDelay = 5;
+    
+    private int cacheSize = 1000;
+    
+    private long cacheMaxBytes;
+    
+    /** The cache of the results of the methods annotated with CachedResult */
+    private ResultCache resultCache;
+    
+    /** The options of the methods by name */
+    private Map<String, MethodOptions> methodOptions = Collections.emptyMap();
 
     /**
      * Creates the new proxy factory.
@@ -111,6 +175,70 @@ public class AMQPHessianProxyFactory implements InitializingBean, DisposableBean
         this.queuePrefix = queuePrefix;
     }
 
+    /**
+     * Returns the name of the queue receiving the requests if it's shared
+     * by several services, null if the service has its own queue.
+     */
+    public String getQueueName()
+    {
+        return queueName;
+    }
+
+    /**
+     * Sets the name of the queue receiving the requests when it's shared by
+     * several services, served by a {@link MultiServiceEndpoint}. By default
+     * each service has its own queue named after its interface. The queue
+     * name is prefixed by the queue prefix.
+     */
+    public void setQueueName(String queueName)
+    {
+        this.queueName = queueName;
+    }
+
+    /**
+     * Returns the number of shards of the request queue.
+     */
+    public int getShards()
+    {
+        return shards;
+    }
+
+    /**
+     * Sets the number of shards of the request queue, it must be the same
+     * as the number of shards of the endpoints. A queue is handled by a
+     * single broker process, the requests of a busy service can be spread
+     * over several queues bound to the service exchange. The requests are
+     * routed by the argument annotated with {@link ShardKey}, or in turn
+     * if the method has no key. The queue isn't sharded by default.
+     */
+    public void setShards(int shards)
+    {
+        this.shards = shards;
+    }
+
+    /**
+     * Indicates if the requests are routed by affinity to the endpoint
+     * instances.
+     */
+    public boolean isAffinity()
+    {
+        return affinity;
+    }
+
+    /**
+     * Specifies if the requests are routed by affinity to the endpoint
+     * instances, the endpoints must be in the affinity mode too. The
+     * requests are published to a consistent hash exchange routing the
+     * requests with the same {@link ShardKey} argument to the same
+     * instance, which keeps the instances caches warm. This requires the
+     * rabbitmq_consistent_hash_exchange plugin, and can't be combined with
+     * sharded queues.
+     */
+    public void setAffinity(boolean affinity)
+    {
+        this.affinity = affinity;
+    }
+
     /**
      * Sets the debug mode.
      */
@@ -152,7 +280,10 @@ public class AMQPHessianProxyFactory implements InitializingBean, DisposableBean
     }
 
     /**
-     * Sets the socket timeout on requests in milliseconds.
+     * Sets the time to wait for a reply in milliseconds, 5 seconds by default.
+     * The requests expire in the queue after this time, and the endpoints
+     * drop the requests received after it. It can be set for each method
+     * with {@link CallOptions} or {@link #setMethodOptions}.
      */
     public void setReadTimeout(long timeout)
     {
@@ -175,6 +306,262 @@ public class AMQPHessianProxyFactory implements InitializingBean, DisposableBean
         this.compressed = compressed;
     }
 
+    /**
+     * Returns the minimum size in bytes of the compressed requests.
+     */
+    public int getCompressionThreshold()
+    {
+        return compressionThreshold;
+    }
+
+    /**
+     * Sets the minimum size in bytes of the compressed requests. Smaller
+     * requests are sent uncompressed, compressing them costs CPU and
+     * rarely makes them smaller. Only used if compression is enabled.
+     * The endpoint decides independently if the reply is compressed.
+     */
+    public void setCompressionThreshold(int compressionThreshold)
+    {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * Returns the content encoding of the compressed requests.
+     */
+    public String getCompressionEncoding()
+    {
+        return compressionEncoding;
+    }
+
+    /**
+     * Sets the content encoding of the compressed requests, "deflate" by
+     * default. "lz4" is available if the lz4 library is on the classpath,
+     * other encodings can be supported with {@link #setCompressionCodecs}.
+     * This encoding is also the preferred encoding of the replies, the
+     * endpoint falls back to another encoding known by the proxy if it
+     * doesn't support it.
+     */
+    public void setCompressionEncoding(String compressionEncoding)
+    {
+        this.compressionEncoding = compressionEncoding;
+    }
+
+    /**
+     * Registers additional compression codecs. A codec replaces the default
+     * codec with the same encoding.
+     */
+    public void setCompressionCodecs(List<CompressionCodec> codecs)
+    {
+        compressionCodecs.register(codecs);
+    }
+
+    /**
+     * Returns the id of the preset dictionary of the deflate messages, or
+     * null if no dictionary is used.
+     */
+    public String getCompressionDictionaryId()
+    {
+        return compressionDictionaryId;
+    }
+
+    /**
+     * Sets the preset dictionary of the deflate messages. The endpoint must
+     * know a dictionary with the same id to decompress the requests.
+     */
+    public void setCompressionDictionary(CompressionDictionary dictionary)
+    {
+        compressionCodecs.register(dictionary);
+        compressionDictionaryId = dictionary.getId();
+    }
+
+    /**
+     * Indicates if the replies are received with RabbitMQ's direct reply-to
+     * instead of a reply queue.
+     */
+    public boolean isDirectReplyTo()
+    {
+        return directReplyTo;
+    }
+
+    /**
+     * Specifies if the replies are received with RabbitMQ's direct reply-to
+     * (amq.rabbitmq.reply-to) instead of a reply queue. No reply queue and
+     * no listener container are created, this requires RabbitMQ 3.4 or later.
+     */
+    public void setDirectReplyTo(boolean directReplyTo)
+    {
+        this.directReplyTo = directReplyTo;
+    }
+
+    /**
+     * Returns the maximum priority of the request queue.
+     */
+    public int getMaxPriority()
+    {
+        return maxPriority;
+    }
+
+    /**
+     * Sets the maximum priority of the request queue, the priority of the
+     * requests is ignored if it's 0 (default). It must be the same as the
+     * maximum priority of the endpoints, a queue can't be redeclared with a
+     * different maximum priority. This requires RabbitMQ 3.5 or later.
+     */
+    public void setMaxPriority(int maxPriority)
+    {
+        this.maxPriority = maxPriority;
+    }
+
+    /**
+     * Returns the maximum number of calls sent in a batch.
+     */
+    public int getBatchSize()
+    {
+        return batchSize;
+    }
+
+    /**
+     * Sets the maximum number of calls sent in a batch, the calls aren't
+     * batched by default. The calls to the same service with the same
+     * options, made by concurrent threads or asynchronously, are packed in
+     * a single message and their replies in a single reply, which saves the
+     * broker overhead of the small calls. The endpoints must support the
+     * batches.
+     */
+    public void setBatchSize(int batchSize)
+    {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Returns the maximum time in milliseconds a call waits for other calls
+     * before its batch is sent.
+     */
+    public long getBatchDelay()
+    {
+        return batchDelay;
+    }
+
+    /**
+     * Sets the maximum time in milliseconds a call waits for other calls
+     * before its batch is sent, 5 milliseconds by default. A batch is sent
+     * as soon as it's full. The calls wait for their reply for their timeout
+     * after the batch is sent.
+     */
+    public void setBatchDelay(long batchDelay)
+    {
+        this.batchDelay = batchDelay;
+    }
+
+    /**
+     * Returns the maximum number of results cached.
+     */
+    public int getCacheSize()
+    {
+        return cacheSize;
+    }
+
+    /**
+     * Sets the maximum number of results of the methods annotated with
+     * {@link CachedResult} cached by the factory, 1000 by default. The least
+     * recently used results are evicted first.
+     */
+    public void setCacheSize(int cacheSize)
+    {
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * Returns the maximum total size in bytes of the results cached.
+     */
+    public long getCacheMaxBytes()
+    {
+        return cacheMaxBytes;
+    }
+
+    /**
+     * Sets the maximum total size in bytes of the serialized results cached
+     * by the factory, the size isn't bounded by default. The least recently
+     * used results are evicted first.
+     */
+    public void setCacheMaxBytes(long cacheMaxBytes)
+    {
+        this.cacheMaxBytes = cacheMaxBytes;
+    }
+
+    /**
+     * Returns the number of calls answered by the cache.
+     */
+    public long getCacheHitCount()
+    {
+        return resultCache != null ? resultCache.getHitCount() : 0;
+    }
+
+    /**
+     * Returns the number of calls to the cached methods not answered by the
+     * cache.
+     */
+    public long getCacheMissCount()
+    {
+        return resultCache != null ? resultCache.getMissCount() : 0;
+    }
+
+    /**
+     * Removes all the cached results.
+     */
+    public void clearCache()
+    {
+        if (resultCache != null)
+        {
+            resultCache.clear();
+        }
+    }
+
+    /**
+     * Returns the cache of the results of the methods annotated with
+     * {@link CachedResult}.
+     */
+    synchronized ResultCache getResultCache()
+    {
+        if (resultCache == null)
+        {
+            resultCache = new ResultCache(cacheSize, cacheMaxBytes);
+        }
+        
+        return resultCache;
+    }
+
+    /**
+     * Returns the options of the methods by name.
+     */
+    public Map<String, MethodOptions> getMethodOptions()
+    {
+        return methodOptions;
+    }
+
+    /**
+     * Sets the options of the methods by name, they apply to all the
+     * overloaded methods with the same name. The options set override the
+     * {@link CallOptions} annotations of the service interface.
+     */
+    public void setMethodOptions(Map<String, MethodOptions> methodOptions)
+    {
+        this.methodOptions = new HashMap<String, MethodOptions>(methodOptions);
+    }
+
+    /**
+     * Returns the options of the calls to the method. The settings of the
+     * factory are overridden by the annotations of the interface and the
+     * method, and then by the options of the method.
+     */
+    MethodOptions getMethodOptions(Method method)
+    {
+        return new MethodOptions(getReplyTimeout(), compressed, null)
+                .merge(MethodOptions.of(method.getDeclaringClass().getAnnotation(CallOptions.class)))
+                .merge(MethodOptions.of(method.getAnnotation(CallOptions.class)))
+                .merge(methodOptions.get(method.getName()));
+    }
+
     /**
      * True if the proxy can read Hessian 2 responses.
      */
@@ -244,11 +631,21 @@ public class AMQPHessianProxyFactory implements InitializingBean, DisposableBean
     /**
      * Get the RabbitMQ template
      * @return rabbitTemplate
+     * @deprecated the calls are no longer sent through a RabbitTemplate, the
+     *             template is created on demand and will be removed in the
+     *             next major release
      */
-    public RabbitTemplate getTemplate() {
+    @Deprecated
+    public synchronized RabbitTemplate getTemplate() {
+        if (template == null && connectionFactory != null) {
+            template = new RabbitTemplate(connectionFactory);
+            if (readTimeout > 0) {
+                template.setReplyTimeout(readTimeout);
+            }
+        }
         return template;
     }
-
+    
     /**
      * Get the service interface
      * @return serviceInterface
@@ -285,6 +682,62 @@ public class AMQPHessianProxyFactory implements InitializingBean, DisposableBean
         return (T) Proxy.newProxyInstance(api.getClassLoader(), new Class[]{api}, handler);
     }
     
+    /**
+     * Invokes a method of the service interface with each of the argument
+     * lists, with a single message and a single reply. The endpoint executes
+     * the calls in order, or in parallel on its executor if it's configured
+     * with parallel batches. The calls are split in several messages only if
+     * the method has a {@link ShardKey}, one message per shard or key.
+     * 
+     * Like {@link java.util.concurrent.ExecutorService#invokeAll}, the results
+     * are returned once all the calls are completed, in the order of the
+     * argument lists. The fault of a call is thrown by the get method of its
+     * result, wrapped in an ExecutionException.
+     * 
+     * @param method the method invoked, declared by the service interface
+     * @param args the arguments of the calls
+     * @return the completed results of the calls
+     * @throws IOException if the requests can't be sent
+     * @throws InterruptedException if the thread is interrupted while waiting for the replies
+     */
+    public List<HessianFuture<Object>> invokeAll(Method method, List<Object[]> args) throws IOException, InterruptedException
+    {
+        if (serviceInterface == null)
+        {
+            throw new IllegalStateException("Property 'serviceInterface' is required");
+        }
+        if (!method.getDeclaringClass().isAssignableFrom(serviceInterface))
+        {
+            throw new IllegalArgumentException("The method " + method + " isn't declared by " + serviceInterface);
+        }
+        
+        return getBulkHandler().invokeAll(method, args);
+    }
+    
+    private synchronized AMQPHessianProxy getBulkHandler()
+    {
+        if (dispatcher == null)
+        {
+            throw new IllegalStateException("The proxy factory isn't initialized");
+        }
+        // the interface changes when the factory creates proxies for several interfaces
+        if (bulkHandler == null || bulkInterface != serviceInterface)
+        {
+            bulkHandler = new AMQPHessianProxy(this);
+            bulkInterface = serviceInterface;
+        }
+        
+        return bulkHandler;
+    }
+    
+    /**
+     * Returns the codecs used to compress and decompress the messages.
+     */
+    CompressionCodecs getCompressionCodecs()
+    {
+        return compressionCodecs;
+    }
+    
     AbstractHessianInput getHessianInput(InputStream is)
     {
         return getHessian2Input(is);
@@ -359,25 +812,32 @@ public class AMQPHessianProxyFactory implements InitializingBean, DisposableBean
      */
     private void createRequestQueue(AmqpAdmin admin, String queueName, String exchangeName)
     {
-        Queue requestQueue = new Queue(queueName, false, false, false);
-        admin.declareQueue(requestQueue);
         DirectExchange requestExchange = new DirectExchange(exchangeName, false, false);
         admin.declareExchange(requestExchange);
-        Binding requestBinding = BindingBuilder.bind(requestQueue).to(requestExchange).with(queueName);
-        admin.declareBinding(requestBinding);
+        for (String shardName : ShardRouter.getShardNames(queueName, shards))
+        {
+            Queue requestQueue = new Queue(shardName, false, false, false, getQueueArguments(maxPriority));
+            admin.declareQueue(requestQueue);
+            Binding requestBinding = BindingBuilder.bind(requestQueue).to(requestExchange).with(shardName);
+            admin.declareBinding(requestBinding);
+        }
     }
     
     /**
-     * Create a queue for response
+     * Returns the arguments of the request queues.
      * 
-     * @param connectionFactory
-     * @param queueName    the name of the queue
+     * @param maxPriority the maximum priority of the requests, 0 if the requests have no priority
      */
-    private Queue createReplyQueue(AmqpAdmin admin, String queueName)
+    static Map<String, Object> getQueueArguments(int maxPriority)
     {
-        Queue replyQueue = new Queue(queueName, false, true, false);
-        admin.declareQueue(replyQueue);
-        return replyQueue;
+        if (maxPriority <= 0)
+        {
+            return null;
+        }
+        
+        Map<String, Object> arguments = new HashMap<String, Object>();
+        arguments.put("x-max-priority", maxPriority);
+        return arguments;
     }
     
     /**
@@ -387,7 +847,7 @@ public class AMQPHessianProxyFactory implements InitializingBean, DisposableBean
      */
     public String getRequestExchangeName(Class<?> cls)
     {
-        String requestExchange = cls.getSimpleName();
+        String requestExchange = queueName != null ? queueName : cls.getSimpleName();
         if (this.queuePrefix != null)
         {
             requestExchange = this.queuePrefix + "." + requestExchange;
@@ -397,39 +857,32 @@ public class AMQPHessianProxyFactory implements InitializingBean, DisposableBean
     }
     
     /**
-     * Return the name of the request queue for the service.
-     * @param cls
-     * @return
+     * Returns the name of the consistent hash exchange receiving the
+     * requests in the affinity mode.
      */
-    public String getRequestQueueName(Class<?> cls)
+    public String getAffinityExchangeName(Class<?> cls)
     {
-        String requestQueue = cls.getSimpleName();
-        if (this.queuePrefix != null)
-        {
-            requestQueue = this.queuePrefix + "." + requestQueue;
-        }
-        
-        return requestQueue;
+        return AffinityRouter.getExchangeName(getRequestQueueName(cls));
     }
     
     /**
-     * Return the name of the reply queue for the service
+     * Return the name of the request queue for the service.
      * @param cls
      * @return
      */
-    private String getReplyQueueName(Class<?> cls){
-        String uuid = UUID.randomUUID().toString();
-        String replyQueue = cls.getSimpleName() + "-reply-" + uuid;
+    public String getRequestQueueName(Class<?> cls)
+    {
+        String requestQueue = queueName != null ? queueName : cls.getSimpleName();
         if (this.queuePrefix != null)
         {
-            replyQueue = this.queuePrefix + "." + replyQueue;
+            requestQueue = this.queuePrefix + "." + requestQueue;
         }
         
-        return replyQueue;
+        return requestQueue;
     }
     
     /**
-     * Initialize queues and the reply listener
+     * Initialize the request queues of the interfaces of the proxies created
      */
     private void initializeQueues(){
         if (!initializing.compareAndSet(false, true)) {
@@ -439,18 +892,15 @@ public class AMQPHessianProxyFactory implements InitializingBean, DisposableBean
             if (admin == null){
                 admin = new RabbitAdmin(connectionFactory);
             }
-            this.createRequestQueue(admin, this.getRequestQueueName(this.serviceInterface), this.getRequestExchangeName(this.serviceInterface));
-            if (replyQueueName == null) {
-                replyQueueName = this.getReplyQueueName(this.serviceInterface);
-            }
-            Queue replyQueue = this.createReplyQueue(admin, replyQueueName);
-            this.template.setReplyQueue(replyQueue);
-            
-            if (listener == null || !listener.isRunning()){
-                listener = new SimpleMessageListenerContainer(this.connectionFactory);
-                listener.setMessageListener(this.template);
-                listener.setQueues(replyQueue);
-                listener.start();
+            for (Class<?> api : declaredInterfaces) {
+                if (affinity){
+                    // the endpoints bind their own queue
+                    admin.declareExchange(new CustomExchange(getAffinityExchangeName(api), 
+                            AffinityRouter.EXCHANGE_TYPE, false, false));
+                }
+                else {
+                    this.createRequestQueue(admin, this.getRequestQueueName(api), this.getRequestExchangeName(api));
+                }
             }
         }
         finally {
@@ -462,31 +912,232 @@ public class AMQPHessianProxyFactory implements InitializingBean, DisposableBean
         if (this.connectionFactory == null){
             throw new IllegalArgumentException("Property 'connectionFactory' is required");
         }
-        // initialize template
-        this.template = new RabbitTemplate(this.connectionFactory);
-        if (this.readTimeout > 0){
-            this.template.setReplyTimeout(readTimeout);
+        if (affinity && shards > 1){
+            throw new IllegalArgumentException("The affinity mode can't be combined with sharded queues");
+        }
+        // the compression can be enabled for a method only
+        if (compressionCodecs.get(compressionEncoding) == null){
+            throw new IllegalArgumentException("Unsupported compression encoding: " + compressionEncoding);
+        }
+        if (this.serviceInterface != null) {
+            declaredInterfaces.add(this.serviceInterface);
         }
         this.initializeQueues();
+        if (dispatcher == null) {
+            dispatcher = ReplyDispatcher.acquire(connectionFactory, queuePrefix, directReplyTo);
+        }
+        if (batcher == null && batchSize > 1) {
+            batcher = new RequestBatcher(this, batchSize, batchDelay);
+        }
         
-        // Add connection listener to recreate queue and reinitialize template when connection fall
-        connectionFactory.addConnectionListener(new ConnectionListener() {
-            
-            public void onCreate(Connection connection) {
-                 initializeQueues();
+        
+        // Add connection listener to recreate the queues when connection fall
+        if (connectionListener == null) {
+            connectionListener = new ConnectionListener() {
+                
+                public void onCreate(Connection connection) {
+                     initializeQueues();
+                }
+                
+                public void onClose(Connection connection) {
+                }
+                
+            };
+            connectionFactory.addConnectionListener(connectionListener);
+        }
+    }
+    
+    /**
+     * Returns the time to wait for a reply in milliseconds.
+     */
+    long getReplyTimeout()
+    {
+        return readTimeout > 0 ? readTimeout : DEFAULT_READ_TIMEOUT;
+    }
+    
+    /**
+     * Creates a request message.
+     * 
+     * @param service the name of the service called
+     * @param payload the body of the request
+     * @param compressed true if the request and the reply can be compressed
+     * @param timeout the time to wait for the reply in milliseconds
+     * @param priority the priority of the request, null if none
+     */
+    Message createRequestMessage(String service, byte[] payload, boolean compressed, long timeout, Integer priority) 
+            throws IOException
+    {
+        MessageProperties messageProperties = new MessageProperties();
+        messageProperties.setContentType(HessianHeaders.CONTENT_TYPE);
+        messageProperties.setHeader(HessianHeaders.SERVICE, service);
+        // nobody reads the reply after the timeout, the request expires
+        messageProperties.setHeader(HessianHeaders.DEADLINE, System.currentTimeMillis() + timeout);
+        messageProperties.setExpiration(Long.toString(timeout));
+        if (priority != null)
+        {
+            messageProperties.setPriority(priority);
+        }
+        if (compressed)
+        {
+            // small requests are sent uncompressed, the reply may still be compressed
+            messageProperties.setHeader(HessianHeaders.ACCEPT_ENCODING, compressionCodecs.getAcceptEncoding(compressionEncoding));
+            if (compressionDictionaryId != null)
+            {
+                messageProperties.setHeader(HessianHeaders.DICTIONARY, compressionDictionaryId);
             }
-            
-            public void onClose(Connection connection) {
+            if (payload.length >= compressionThreshold)
+            {
+                payload = compressionCodecs.getRequired(compressionEncoding, compressionDictionaryId).compress(payload);
+                messageProperties.setContentEncoding(compressionEncoding);
             }
-            
-        });
+        }
+        
+        return new Message(payload, messageProperties);
+    }
+    
+    /**
+     * Returns the body of a reply, decompressed if necessary.
+     */
+    byte[] getReplyBody(Message reply) throws IOException
+    {
+        MessageProperties props = reply.getMessageProperties();
+        Object dictionaryId = props.getHeaders().get(HessianHeaders.DICTIONARY);
+        CompressionCodec codec = compressionCodecs.get(props.getContentEncoding(), 
+                dictionaryId != null ? dictionaryId.toString() : null);
+        
+        byte[] body = reply.getBody();
+        if (codec != null)
+        {
+            body = codec.decompress(body);
+        }
+        
+        return body;
+    }
+    
+    /**
+     * Returns the replies to the calls of a batch. A reply without the batch
+     * header is a fault replied to all the calls, the endpoint couldn't read
+     * the batch.
+     * 
+     * @param reply the reply to the batch
+     * @param count the number of calls of the batch
+     * @return the Hessian replies, empty for the calls dropped by the endpoint
+     */
+    List<byte[]> getBatchReplies(Message reply, int count) throws IOException
+    {
+        byte[] body = getReplyBody(reply);
+        if (reply.getMessageProperties().getHeaders().get(HessianHeaders.BATCH) == null)
+        {
+            return Collections.nCopies(count, body);
+        }
+        
+        List<byte[]> replies = BatchCodec.decodeReplies(body);
+        if (replies.size() != count)
+        {
+            throw new IOException("Received " + replies.size() + " replies to a batch of " + count + " calls");
+        }
+        return replies;
+    }
+    
+    /**
+     * Publishes a request and waits for the reply.
+     * 
+     * @param method the method invoked
+     * @param routingKey the routing key of the request, null if it's selected by the router of the method
+     * @param service the name of the service called
+     * @param payload the body of the request
+     * @return the reply, or null if no reply was received within the timeout of the method
+     * @throws HessianRuntimeException if the thread is interrupted while waiting for the reply
+     */
+    Message sendRequest(MethodDescriptor method, String routingKey, String service, byte[] payload) throws IOException
+    {
+        if (batcher == null)
+        {
+            Message message = createRequestMessage(service, payload, method.isCompressed(), method.getTimeout(), method.getPriority());
+            return dispatcher.sendAndReceive(method.getExchange(), routingKey != null ? routingKey : method.nextRoutingKey(), 
+                    message, method.getTimeout());
+        }
+        
+        HessianFuture<Message> reply = batcher.add(method, routingKey, service, payload);
+        try
+        {
+            return reply.get(method.getTimeout() + batchDelay, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e)
+        {
+            return null;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new HessianRuntimeException("Interrupted while waiting for the reply", e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof TimeoutException)
+            {
+                return null;
+            }
+            if (e.getCause() instanceof IOException)
+            {
+                throw (IOException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+    
+    /**
+     * Publishes a request without waiting for the reply. The returned future
+     * is completed by the reply listener, or fails with a TimeoutException
+     * if no reply is received within the timeout of the method.
+     * 
+     * @param method the method invoked
+     * @param routingKey the routing key of the request
+     * @param service the name of the service called
+     * @param payload the body of the request
+     * @return the future reply
+     */
+    HessianFuture<Message> sendRequestAsync(MethodDescriptor method, String routingKey, String service, byte[] payload) 
+            throws IOException
+    {
+        if (batcher != null)
+        {
+            return batcher.add(method, routingKey, service, payload);
+        }
+        
+        Message message = createRequestMessage(service, payload, method.isCompressed(), method.getTimeout(), method.getPriority());
+        return dispatcher.send(method.getExchange(), routingKey != null ? routingKey : method.nextRoutingKey(), 
+                message, method.getTimeout());
+    }
+    
+    /**
+     * Publishes a request without waiting for the reply.
+     * 
+     * @param exchange the exchange receiving the request
+     * @param routingKey the routing key of the request
+     * @param message the request message
+     * @param timeout the time to wait for the reply in milliseconds
+     * @return the future reply
+     */
+    HessianFuture<Message> send(String exchange, String routingKey, Message message, long timeout)
+    {
+        return dispatcher.send(exchange, routingKey, message, timeout);
     }
 
     /**
-     * Destroys the reply listener
+     * Releases the reply listener, it's destroyed once all the factories
+     * sharing it are destroyed. The pending batches are sent, and the
+     * resources of the compression codecs are released.
      */
     public void destroy() throws Exception {
-        listener.destroy();
+        if (batcher != null){
+            batcher.destroy();
+            batcher = null;
+        }
+        if (dispatcher != null){
+            ReplyDispatcher.release(dispatcher);
+            dispatcher = null;
+        }
+        compressionCodecs.destroy();
     }
 }
-
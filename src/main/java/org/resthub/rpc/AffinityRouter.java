@@ -0,0 +1,121 @@
+/**
+ * Copyright 2013 resthub.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.resthub.rpc;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Routes the requests to the endpoint instances by key, through a
+ * consistent hash exchange.
+ *
+ * In the affinity mode each endpoint instance binds its own queue to the
+ * consistent hash exchange of the service, which hashes the routing key
+ * of the requests on a ring shared by the queues. The requests with the
+ * same key land on the same instance, and only the keys of an instance
+ * joining or leaving the ring are moved to another instance. This requires
+ * the rabbitmq_consistent_hash_exchange plugin.
+ *
+ * The routing key is the string form of the key: the name of an enum, or
+ * the result of toString(). The key must thus be a String, a Number, an
+ * Enum, or a type overriding toString() with a value identifying the key.
+ */
+class AffinityRouter implements RequestRouter
+{
+    /** The type of the consistent hash exchange */
+    static final String EXCHANGE_TYPE = "x-consistent-hash";
+
+    /** The maximum length in bytes of a routing key, the longer keys are hashed */
+    static final int MAX_KEY_BYTES = 255;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** The next routing key of the requests without key */
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Returns the name of the consistent hash exchange of a service.
+     *
+     * @param queueName the name of the request queue of the service
+     */
+    static String getExchangeName(String queueName)
+    {
+        return queueName + ".affinity";
+    }
+
+    /**
+     * Returns the routing key of the specified key.
+     *
+     * @param key the key of the request, may be null
+     * @throws IllegalArgumentException if the type of the key doesn't override toString()
+     */
+    static String getRoutingKey(Object key)
+    {
+        String routingKey;
+        if (key == null)
+        {
+            routingKey = "";
+        }
+        else if (key instanceof Enum)
+        {
+            routingKey = ((Enum<?>) key).name();
+        }
+        else if (isIdentityString(key.getClass()))
+        {
+            // the identity hash differs for equal keys and between the clients
+            throw new IllegalArgumentException("The key type " + key.getClass().getName() 
+                    + " doesn't override toString() and can't be used for the affinity routing");
+        }
+        else
+        {
+            routingKey = key.toString();
+        }
+        
+        // the routing keys are limited to 255 bytes, the UTF-8 encoding of a char takes up to 3 bytes
+        if (routingKey.length() * 3 > MAX_KEY_BYTES && routingKey.getBytes(UTF8).length > MAX_KEY_BYTES)
+        {
+            routingKey = Integer.toHexString(routingKey.hashCode());
+        }
+        
+        return routingKey;
+    }
+
+    /**
+     * Returns true if the class uses the toString() method of Object.
+     */
+    private static boolean isIdentityString(Class<?> type)
+    {
+        try
+        {
+            return type.getMethod("toString").getDeclaringClass() == Object.class;
+        }
+        catch (NoSuchMethodException e)
+        {
+            return true;
+        }
+    }
+
+    public String getRoutingKey(Object[] args, int keyIndex)
+    {
+        if (keyIndex >= 0)
+        {
+            return getRoutingKey(args[keyIndex]);
+        }
+        
+        // spread the requests without key over the ring
+        return Integer.toString(next.getAndIncrement());
+    }
+}
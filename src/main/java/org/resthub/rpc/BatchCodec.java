@@ -0,0 +1,154 @@
+/**
+ * Copyright 2013 resthub.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.resthub.rpc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Frames the calls packed in a batch message.
+ *
+ * A batch request starts with the number of calls, followed by the
+ * deadline, the length and the Hessian request of each call. A batch
+ * reply starts with the number of calls, followed by the length and the
+ * Hessian reply of each call, in the order of the requests. The reply to
+ * a call dropped after its deadline is empty.
+ */
+final class BatchCodec
+{
+    private BatchCodec()
+    {
+    }
+
+    /**
+     * Encodes the requests of a batch.
+     *
+     * @param requests  the Hessian requests
+     * @param deadlines the deadlines of the requests, in milliseconds since the epoch
+     */
+    static byte[] encodeRequests(List<byte[]> requests, List<Long> deadlines) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256 * requests.size());
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(requests.size());
+        for (int i = 0; i < requests.size(); i++)
+        {
+            byte[] request = requests.get(i);
+            out.writeLong(deadlines.get(i));
+            out.writeInt(request.length);
+            out.write(request);
+        }
+        out.flush();
+        
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes the requests of a batch.
+     *
+     * @param body      the body of the batch
+     * @param deadlines the list receiving the deadlines of the requests
+     * @return the Hessian requests
+     */
+    static List<byte[]> decodeRequests(byte[] body, List<Long> deadlines) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        int count = readCount(in, body.length);
+        List<byte[]> requests = new ArrayList<byte[]>(count);
+        for (int i = 0; i < count; i++)
+        {
+            deadlines.add(in.readLong());
+            requests.add(readFrame(in, body.length));
+        }
+        
+        return requests;
+    }
+
+    /**
+     * Encodes the replies of a batch.
+     *
+     * @param replies the Hessian replies, null for the dropped calls
+     */
+    static byte[] encodeReplies(byte[][] replies) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256 * replies.length);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(replies.length);
+        for (byte[] reply : replies)
+        {
+            if (reply == null)
+            {
+                out.writeInt(0);
+            }
+            else
+            {
+                out.writeInt(reply.length);
+                out.write(reply);
+            }
+        }
+        out.flush();
+        
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes the replies of a batch.
+     *
+     * @param body the body of the batch reply
+     * @return the Hessian replies, empty for the dropped calls
+     */
+    static List<byte[]> decodeReplies(byte[] body) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        int count = readCount(in, body.length);
+        List<byte[]> replies = new ArrayList<byte[]>(count);
+        for (int i = 0; i < count; i++)
+        {
+            replies.add(readFrame(in, body.length));
+        }
+        
+        return replies;
+    }
+
+    private static int readCount(DataInputStream in, int size) throws IOException
+    {
+        int count = in.readInt();
+        if (count < 0 || count > size)
+        {
+            throw new IOException("Invalid number of calls in the batch: " + count);
+        }
+        
+        return count;
+    }
+
+    private static byte[] readFrame(DataInputStream in, int size) throws IOException
+    {
+        int length = in.readInt();
+        if (length < 0 || length > size)
+        {
+            throw new IOException("Invalid length of a call in the batch: " + length);
+        }
+        
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return frame;
+    }
+}
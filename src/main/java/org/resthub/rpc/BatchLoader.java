@@ -0,0 +1,278 @@
+/**
+ * Copyright 2013 resthub.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.resthub.rpc;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects the concurrent calls to a service method taking a single key,
+ * and invokes its batch counterpart once for all of them.
+ *
+ * The first call of a batch schedules its execution after the delay, a
+ * call filling the batch executes it immediately. The calls with the same
+ * key share the same result. The batches flushed after the delay are
+ * executed by the executor of the endpoint if one is set, the scheduler
+ * thread only triggers the flush.
+ */
+class BatchLoader
+{
+    private static final Logger logger = LoggerFactory.getLogger(BatchLoader.class);
+
+    private final Object serviceImpl;
+    private final Method batchMethod;
+    private final boolean mapResult;
+    private final long delay;
+    private final int maxSize;
+
+    /** The thread flushing the batches after the delay, stopped when idle */
+    private final ScheduledThreadPoolExecutor scheduler;
+
+    /** The executor of the batches flushed after the delay, null to execute them in the scheduler thread */
+    private volatile Executor executor;
+
+    /** The results of the calls of the pending batch by key, null if no batch is pending */
+    private Map<Object, List<HessianFuture<Object>>> pending;
+
+    /** True once destroyed, the calls are then executed immediately */
+    private boolean destroyed;
+
+    /**
+     * @param serviceImpl   the object implementing the service
+     * @param method        the method taking a single key
+     * @param batchMethod   the batch counterpart of the method
+     * @param delay         the maximum time in milliseconds a call waits for other calls
+     * @param maxSize       the maximum number of keys of a batch
+     */
+    BatchLoader(Object serviceImpl, final Method method, Method batchMethod, long delay, int maxSize)
+    {
+        if (method.getParameterTypes().length != 1)
+        {
+            throw new IllegalArgumentException("The batched method " + method + " must take a single key");
+        }
+        Class<?>[] params = batchMethod.getParameterTypes();
+        if (params.length != 1 || !params[0].isAssignableFrom(List.class))
+        {
+            throw new IllegalArgumentException("The batch method " + batchMethod + " must take a List of keys");
+        }
+        if (Map.class.isAssignableFrom(batchMethod.getReturnType()))
+        {
+            mapResult = true;
+        }
+        else if (List.class.isAssignableFrom(batchMethod.getReturnType()))
+        {
+            mapResult = false;
+        }
+        else
+        {
+            throw new IllegalArgumentException("The batch method " + batchMethod + " must return a List or a Map");
+        }
+        
+        this.serviceImpl = serviceImpl;
+        this.batchMethod = batchMethod;
+        this.delay = delay;
+        this.maxSize = Math.max(1, maxSize);
+        this.scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+        {
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "HessianEndpoint-batch-" + method.getName());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.scheduler.setKeepAliveTime(1, TimeUnit.MINUTES);
+        this.scheduler.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Sets the executor of the batches flushed after the delay.
+     */
+    void setExecutor(Executor executor)
+    {
+        this.executor = executor;
+    }
+
+    /**
+     * Adds a call to the pending batch.
+     *
+     * @param key the key of the call
+     * @return the future result of the call
+     */
+    HessianFuture<Object> load(Object key)
+    {
+        HessianFuture<Object> result = new HessianFuture<Object>();
+        Map<Object, List<HessianFuture<Object>>> full = null;
+        synchronized (this)
+        {
+            if (destroyed)
+            {
+                full = Collections.singletonMap(key, Collections.singletonList(result));
+            }
+            else if (pending == null)
+            {
+                pending = new LinkedHashMap<Object, List<HessianFuture<Object>>>();
+                final Map<Object, List<HessianFuture<Object>>> batch = pending;
+                scheduler.schedule(new Runnable()
+                {
+                    public void run()
+                    {
+                        flush(batch);
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            }
+            if (full == null)
+            {
+                List<HessianFuture<Object>> results = pending.get(key);
+                if (results == null)
+                {
+                    results = new ArrayList<HessianFuture<Object>>(1);
+                    pending.put(key, results);
+                }
+                results.add(result);
+                if (pending.size() >= maxSize)
+                {
+                    full = pending;
+                    pending = null;
+                }
+            }
+        }
+        
+        if (full != null)
+        {
+            execute(full);
+        }
+        
+        return result;
+    }
+
+    /**
+     * Hands the batch to the executor if it wasn't executed when it was full.
+     */
+    private void flush(final Map<Object, List<HessianFuture<Object>>> batch)
+    {
+        synchronized (this)
+        {
+            if (pending != batch)
+            {
+                return;
+            }
+            pending = null;
+        }
+        
+        Executor current = executor;
+        if (current != null)
+        {
+            try
+            {
+                current.execute(new Runnable()
+                {
+                    public void run()
+                    {
+                        execute(batch);
+                    }
+                });
+                return;
+            }
+            catch (RejectedExecutionException e)
+            {
+                logger.debug("Batch rejected by the executor, executing it in the scheduler thread");
+            }
+        }
+        execute(batch);
+    }
+
+    /**
+     * Stops the scheduler and executes the pending batch in the current
+     * thread. The calls received afterwards are executed immediately.
+     */
+    void destroy()
+    {
+        Map<Object, List<HessianFuture<Object>>> batch;
+        synchronized (this)
+        {
+            destroyed = true;
+            batch = pending;
+            pending = null;
+        }
+        scheduler.shutdownNow();
+        
+        if (batch != null)
+        {
+            execute(batch);
+        }
+    }
+
+    /**
+     * Invokes the batch method and completes the calls with their result.
+     */
+    private void execute(Map<Object, List<HessianFuture<Object>>> batch)
+    {
+        List<Object> keys = new ArrayList<Object>(batch.keySet());
+        Object results;
+        try
+        {
+            results = batchMethod.invoke(serviceImpl, keys);
+            if (!mapResult && (results == null || ((List<?>) results).size() != keys.size()))
+            {
+                throw new IllegalStateException("The batch method " + batchMethod.getName() + " returned " 
+                        + (results == null ? "null" : ((List<?>) results).size() + " results") + " for " + keys.size() + " keys");
+            }
+        }
+        catch (Throwable e)
+        {
+            Throwable cause = e instanceof InvocationTargetException ? ((InvocationTargetException) e).getTargetException() : e;
+            for (List<HessianFuture<Object>> futures : batch.values())
+            {
+                for (HessianFuture<Object> future : futures)
+                {
+                    future.setException(cause);
+                }
+            }
+            return;
+        }
+        
+        for (int i = 0; i < keys.size(); i++)
+        {
+            Object result;
+            if (mapResult)
+            {
+                result = results != null ? ((Map<?, ?>) results).get(keys.get(i)) : null;
+            }
+            else
+            {
+                result = ((List<?>) results).get(i);
+            }
+            for (HessianFuture<Object> future : batch.get(keys.get(i)))
+            {
+                future.set(result);
+            }
+        }
+    }
+}
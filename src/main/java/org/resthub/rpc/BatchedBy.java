@@ -0,0 +1,58 @@
+/**
+ * Copyright 2013 resthub.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.resthub.rpc;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares the batch counterpart of a service method taking a single key,
+ * like findById(long) backed by findByIds(List&lt;Long&gt;). The endpoint
+ * collects the concurrent calls to the method for a short delay, and
+ * invokes the batch method once with their distinct keys.
+ *
+ * The batch method is a public method of the service implementation taking
+ * a single List of keys. It returns either a List of results in the order
+ * of the keys, or a Map of the results by key, the keys missing from the
+ * map have a null result. If the batch method fails all the calls of the
+ * batch fail. The annotation can be set on the method of the implementation
+ * or of the interface.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface BatchedBy
+{
+    /**
+     * The name of the batch method.
+     */
+    String value();
+
+    /**
+     * The maximum time in milliseconds a call waits for other calls before
+     * the batch method is invoked.
+     */
+    long delay() default 2;
+
+    /**
+     * The maximum number of keys of a batch. The batch method is invoked as
+     * soon as this number of distinct keys is reached.
+     */
+    int maxSize() default 100;
+}
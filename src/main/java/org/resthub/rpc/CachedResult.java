@@ -0,0 +1,44 @@
+/**
+ * Copyright 2013 resthub.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.resthub.rpc;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Caches the results of a method of a service interface on the client.
+ * The calls with the same serialized arguments return the cached result
+ * until it expires, without sending a request. The faults aren't cached.
+ *
+ * The cache keeps the serialized replies, each call returns a new copy of
+ * the result that the caller can modify. The cache is bounded by the
+ * settings of the proxy factory and evicts the least recently used results.
+ * Only the methods returning the same result for minutes, like reference
+ * data or configuration lookups, should be cached.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface CachedResult
+{
+    /**
+     * The time in milliseconds the results are cached.
+     */
+    long ttl();
+}
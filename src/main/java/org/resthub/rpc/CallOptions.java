@@ -0,0 +1,65 @@
+/**
+ * Copyright 2013 resthub.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.resthub.rpc;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Options of the calls to a method of a service interface, or to all the
+ * methods of the interface. The options of a method override the options
+ * of its interface, which override the settings of the proxy factory. The
+ * options set with {@link AMQPHessianProxyFactory#setMethodOptions} take
+ * precedence over the annotations.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ ElementType.METHOD, ElementType.TYPE })
+public @interface CallOptions
+{
+    /** The compression of the requests */
+    enum Compression
+    {
+        /** The compression setting of the proxy factory */
+        DEFAULT,
+        
+        /** The requests are compressed */
+        ENABLED,
+        
+        /** The requests aren't compressed */
+        DISABLED
+    }
+
+    /**
+     * The time to wait for a reply in milliseconds, the read timeout of the
+     * proxy factory if 0.
+     */
+    long timeout() default 0;
+
+    /**
+     * The compression of the requests and the replies.
+     */
+    Compression compression() default Compression.DEFAULT;
+
+    /**
+     * The priority of the requests, from 0 to the maximum priority of the
+     * request queue. No priority is set if negative.
+     */
+    int priority() default -1;
+}
@@ -0,0 +1,360 @@
+/**
+ * Copyright 2013 resthub.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.resthub.rpc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.core.ChannelAwareMessageListener;
+import org.springframework.amqp.rabbit.core.ChannelCallback;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+
+import com.rabbitmq.client.Channel;
+
+/**
+ * Adjusts the number of consumers of an endpoint to the backlog of its
+ * request queue.
+ *
+ * The queue depth is checked periodically with a passive declaration, the
+ * depths of the shards are added if the request queue is sharded. A
+ * consumer is added when the backlog exceeds the threshold per consumer
+ * for several consecutive checks, and removed when the queue stays empty
+ * for a longer period, so that bursts don't make the endpoint oscillate.
+ * The listener containers can't be resized while running, the consumers
+ * beyond the minimum are thus run by additional single consumer containers.
+ * A container is destroyed once the requests it received are acknowledged,
+ * since the replies and the acknowledgements use its channel. The removed
+ * containers are drained by their own thread, the checks don't wait for them.
+ */
+class ConsumerAutoscaler
+{
+    private static final Logger logger = LoggerFactory.getLogger(ConsumerAutoscaler.class);
+
+    /** The number of consecutive checks with a backlog before adding consumers */
+    static final int SCALE_UP_CHECKS = 2;
+
+    /** The number of consecutive checks with an empty queue before removing a consumer */
+    static final int SCALE_DOWN_CHECKS = 10;
+
+    /** The maximum time in milliseconds to wait for the requests in progress of a removed consumer */
+    static final long DRAIN_TIMEOUT = 60000;
+
+    private final HessianEndpoint endpoint;
+    private final RabbitTemplate template;
+    private final String[] queueNames;
+    private final String queueName;
+    private final int minConsumers;
+    private final int maxConsumers;
+    private final int backlogPerConsumer;
+
+    /** The containers started beyond the minimum number of consumers */
+    private final List<AdditionalConsumer> containers = new ArrayList<AdditionalConsumer>();
+
+    /** The threads draining the removed containers */
+    private final List<Thread> drains = new ArrayList<Thread>();
+
+    private volatile ScheduledExecutorService scheduler;
+    private int busyChecks;
+    private int idleChecks;
+
+    /**
+     * @param endpoint              the endpoint creating the containers
+     * @param template              the template used to check the queue
+     * @param queueNames            the names of the shards of the request queue
+     * @param minConsumers          the number of consumers of the main container
+     * @param maxConsumers          the maximum number of consumers
+     * @param backlogPerConsumer    the number of waiting requests per consumer triggering a scale up
+     */
+    ConsumerAutoscaler(HessianEndpoint endpoint, RabbitTemplate template, String[] queueNames, 
+            int minConsumers, int maxConsumers, int backlogPerConsumer)
+    {
+        this.endpoint = endpoint;
+        this.template = template;
+        this.queueNames = queueNames;
+        this.queueName = queueNames[0];
+        this.minConsumers = minConsumers;
+        this.maxConsumers = maxConsumers;
+        this.backlogPerConsumer = Math.max(1, backlogPerConsumer);
+    }
+
+    /**
+     * Starts checking the queue periodically.
+     *
+     * @param interval the time between two checks in milliseconds
+     */
+    synchronized void start(long interval)
+    {
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "HessianEndpoint-autoscaler-" + queueName);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    check(getQueueDepth());
+                }
+                catch (RuntimeException e)
+                {
+                    logger.warn("Unable to check the depth of the queue " + queueName, e);
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the number of requests waiting in the queue.
+     */
+    private int getQueueDepth()
+    {
+        return template.execute(new ChannelCallback<Integer>()
+        {
+            public Integer doInRabbit(Channel channel) throws IOException
+            {
+                int depth = 0;
+                for (String name : queueNames)
+                {
+                    depth += channel.queueDeclarePassive(name).getMessageCount();
+                }
+                return depth;
+            }
+        });
+    }
+
+    /**
+     * Returns the current number of consumers.
+     */
+    synchronized int getConsumerCount()
+    {
+        return minConsumers + containers.size();
+    }
+
+    /**
+     * Adds or removes consumers according to the depth of the queue.
+     *
+     * @param depth the number of requests waiting in the queue
+     */
+    synchronized void check(int depth)
+    {
+        int consumers = getConsumerCount();
+        if (depth > consumers * backlogPerConsumer)
+        {
+            busyChecks++;
+            idleChecks = 0;
+        }
+        else if (depth == 0)
+        {
+            idleChecks++;
+            busyChecks = 0;
+        }
+        else
+        {
+            busyChecks = 0;
+            idleChecks = 0;
+        }
+
+        if (busyChecks >= SCALE_UP_CHECKS && consumers < maxConsumers)
+        {
+            // enough consumers to absorb the backlog, at least one more
+            int target = Math.min(maxConsumers, Math.max(consumers + 1, (depth + backlogPerConsumer - 1) / backlogPerConsumer));
+            logger.info("Scaling up the consumers of " + queueName + " from " + consumers + " to " + target 
+                    + ", " + depth + " requests waiting");
+            while (getConsumerCount() < target)
+            {
+                AdditionalConsumer consumer = new AdditionalConsumer();
+                consumer.container.start();
+                containers.add(consumer);
+            }
+            busyChecks = 0;
+        }
+        else if (idleChecks >= SCALE_DOWN_CHECKS && consumers > minConsumers)
+        {
+            logger.info("Scaling down the consumers of " + queueName + " from " + consumers + " to " + (consumers - 1));
+            drains.add(drain(containers.remove(containers.size() - 1)));
+            idleChecks = 0;
+        }
+    }
+
+    /**
+     * Destroys a removed container on a new thread, once its requests in
+     * progress are acknowledged.
+     *
+     * @return the thread draining the container
+     */
+    private Thread drain(final AdditionalConsumer consumer)
+    {
+        Thread thread = new Thread("HessianEndpoint-drain-" + queueName)
+        {
+            @Override
+            public void run()
+            {
+                consumer.destroy();
+                synchronized (ConsumerAutoscaler.this)
+                {
+                    drains.remove(this);
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Stops checking the queue and destroys the additional containers. The
+     * containers are drained in parallel, the method returns when they are
+     * all destroyed.
+     */
+    void destroy()
+    {
+        // a check in progress holds the monitor
+        ScheduledExecutorService current = scheduler;
+        if (current != null)
+        {
+            current.shutdownNow();
+            scheduler = null;
+        }
+
+        List<Thread> pending;
+        synchronized (this)
+        {
+            for (AdditionalConsumer consumer : containers)
+            {
+                drains.add(drain(consumer));
+            }
+            containers.clear();
+            pending = new ArrayList<Thread>(drains);
+        }
+
+        try
+        {
+            for (Thread thread : pending)
+            {
+                thread.join();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A single consumer container, with the number of requests it received
+     * that aren't acknowledged yet.
+     */
+    private class AdditionalConsumer implements ChannelAwareMessageListener
+    {
+        private final SimpleMessageListenerContainer container = endpoint.createListenerContainer(1, this);
+        private int inFlight;
+        private boolean draining;
+
+        public void onMessage(Message message, Channel channel)
+        {
+            boolean wait;
+            synchronized (this)
+            {
+                inFlight++;
+                wait = draining;
+            }
+            endpoint.getDelegate().onMessage(message, channel, new Runnable()
+            {
+                public void run()
+                {
+                    settled();
+                }
+            });
+            
+            if (wait)
+            {
+                // the channel is closed when the consumer thread stops
+                try
+                {
+                    awaitSettled(DRAIN_TIMEOUT);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        private synchronized void settled()
+        {
+            inFlight--;
+            notifyAll();
+        }
+
+        /**
+         * Waits until all the requests received are acknowledged.
+         *
+         * @return false if requests are still in progress after the timeout
+         */
+        private synchronized boolean awaitSettled(long timeout) throws InterruptedException
+        {
+            long deadline = System.currentTimeMillis() + timeout;
+            long remaining = timeout;
+            while (inFlight > 0 && remaining > 0)
+            {
+                wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+            return inFlight == 0;
+        }
+
+        /**
+         * Destroys the container once its requests in progress are acknowledged.
+         * The requests received meanwhile are processed before the consumer
+         * thread returns, the container stops when it holds none.
+         */
+        void destroy()
+        {
+            synchronized (this)
+            {
+                draining = true;
+            }
+            try
+            {
+                if (!awaitSettled(DRAIN_TIMEOUT))
+                {
+                    logger.warn("Requests still in progress after " + DRAIN_TIMEOUT + " ms on a consumer of " + queueName 
+                            + ", they will be redelivered");
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            container.destroy();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/**
+ * Copyright 2013 resthub.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.resthub.rpc;
+
+/**
+ * Callback notified when a {@link HessianFuture} completes.
+ *
+ * @param <V> the type of the result
+ */
+public interface HessianCallback<V>
+{
+    /**
+     * Called when the call completed successfully.
+     *
+     * @param result the result of the call
+     */
+    void onSuccess(V result);
+
+    /**
+     * Called when the call failed, timed out or was cancelled.
+     *
+     * @param cause the failure
+     */
+    void onFailure(Throwable cause);
+}
@@ -16,16 +16,26 @@
  */
 package org.resthub.rpc;
 
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+import org.resthub.rpc.compression.CompressionCodec;
+import org.resthub.rpc.compression.CompressionCodecs;
+import org.resthub.rpc.compression.CompressionDictionary;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.AcknowledgeMode;
 import org.springframework.amqp.core.AmqpAdmin;
+import org.springframework.amqp.core.BindingBuilder;
+import org.springframework.amqp.core.CustomExchange;
 import org.springframework.amqp.core.Queue;
 import org.springframework.amqp.rabbit.connection.Connection;
 import org.springframework.amqp.rabbit.connection.ConnectionFactory;
 import org.springframework.amqp.rabbit.connection.ConnectionListener;
 import org.springframework.amqp.rabbit.core.RabbitAdmin;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
-import org.springframework.amqp.rabbit.listener.adapter.MessageListenerAdapter;
 import org.springframework.aop.SpringProxy;
 import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
@@ -49,9 +59,49 @@ public class HessianEndpoint implements InitializingBean, DisposableBean
     private SerializerFactory serializerFactory;
     private ConnectionFactory connectionFactory;
     private SimpleMessageListenerContainer listenerContainer;
+    private RawMessageDelegate delegate;
+    private ConsumerAutoscaler autoscaler;
     private AmqpAdmin admin;
+    /** The listener declaring the queues on reconnection, registered once on the connection factory */
+    private ConnectionListener connectionListener;
+    /** True between run and destroy, the queues aren't declared again once destroyed */
+    private volatile boolean running;
+    
+    /** The codecs used to compress and decompress the messages */
+    private final CompressionCodecs compressionCodecs = new CompressionCodecs();
     
     private int concurentConsumers;
+    
+    private int shards;
+    
+    private boolean affinity;
+    
+    private int affinityWeight = 10;
+    
+    /** The queue of this instance in the affinity mode */
+    private String affinityQueueName;
+    
+    private int maxConcurentConsumers;
+    
+    private int scaleUpBacklog = 10;
+    
+    private long autoscaleInterval = 1000;
+    
+    private int prefetchCount;
+    
+    private int maxPriority;
+    
+    private AcknowledgeMode acknowledgeMode = AcknowledgeMode.MANUAL;
+    
+    private int txSize;
+    
+    private long receiveTimeout;
+    
+    private Executor executor;
+    
+    private boolean parallelBatches;
+    
+    private int compressionThreshold;
 
     /** The prefix of the queue created to receive the hessian requests */
     private String queuePrefix;
@@ -78,6 +128,18 @@ public class HessianEndpoint implements InitializingBean, DisposableBean
         setServiceImpl(serviceImpl);
     }
 
+    /**
+     * Creates an hessian endpoint for the specified service.
+     * 
+     * @param serviceAPI The interface of the service
+     * @param serviceImpl The remote object to be exposed by the endpoint
+     */
+    public HessianEndpoint(Class<?> serviceAPI, Object serviceImpl)
+    {
+        setServiceAPI(serviceAPI);
+        setServiceImpl(serviceImpl);
+    }
+
     /**
      * Specifies the interface of the service.
      */
@@ -164,6 +226,319 @@ public class HessianEndpoint implements InitializingBean, DisposableBean
         this.concurentConsumers = concurentConsumers;
     }
 
+    /**
+     * Returns the number of shards of the request queue.
+     */
+    public int getShards()
+    {
+        return shards;
+    }
+
+    /**
+     * Sets the number of shards of the request queue, it must be the same
+     * as the number of shards of the proxies. The consumers of the endpoint
+     * consume all the shards. The queue isn't sharded by default.
+     */
+    public void setShards(int shards)
+    {
+        this.shards = shards;
+    }
+
+    /**
+     * Indicates if the endpoint receives the requests routed by affinity.
+     */
+    public boolean isAffinity()
+    {
+        return affinity;
+    }
+
+    /**
+     * Specifies if the endpoint receives the requests routed by affinity,
+     * the proxies must be in the affinity mode too. Each endpoint instance
+     * binds its own queue to the consistent hash exchange of the service,
+     * the requests with the same key are received by the same instance.
+     * The queue is deleted when the endpoint is destroyed, its keys are
+     * then spread over the remaining instances, and the requests waiting
+     * in the queue are lost. This requires the
+     * rabbitmq_consistent_hash_exchange plugin, and can't be combined with
+     * sharded queues.
+     */
+    public void setAffinity(boolean affinity)
+    {
+        this.affinity = affinity;
+    }
+
+    /**
+     * Returns the weight of the instance on the consistent hash ring.
+     */
+    public int getAffinityWeight()
+    {
+        return affinityWeight;
+    }
+
+    /**
+     * Sets the weight of the instance on the consistent hash ring, 10 by
+     * default. The share of the keys received by an instance is proportional
+     * to its weight.
+     */
+    public void setAffinityWeight(int affinityWeight)
+    {
+        this.affinityWeight = affinityWeight;
+    }
+
+    /**
+     * Returns the maximum number of concurent consumers.
+     */
+    public int getMaxConcurentConsumers()
+    {
+        return maxConcurentConsumers;
+    }
+
+    /**
+     * Sets the maximum number of concurent consumers. If it's larger than the
+     * number of concurent consumers, consumers are added when requests
+     * accumulate in the queue and removed when the queue stays empty.
+     */
+    public void setMaxConcurentConsumers(int maxConcurentConsumers)
+    {
+        this.maxConcurentConsumers = maxConcurentConsumers;
+    }
+
+    /**
+     * Returns the number of waiting requests per consumer above which
+     * consumers are added.
+     */
+    public int getScaleUpBacklog()
+    {
+        return scaleUpBacklog;
+    }
+
+    /**
+     * Sets the number of waiting requests per consumer above which consumers
+     * are added, 10 by default. The backlog must be sustained for two checks.
+     */
+    public void setScaleUpBacklog(int scaleUpBacklog)
+    {
+        this.scaleUpBacklog = scaleUpBacklog;
+    }
+
+    /**
+     * Returns the time in milliseconds between two checks of the queue depth.
+     */
+    public long getAutoscaleInterval()
+    {
+        return autoscaleInterval;
+    }
+
+    /**
+     * Sets the time in milliseconds between two checks of the queue depth,
+     * 1 second by default. A consumer is removed after ten checks finding
+     * the queue empty.
+     */
+    public void setAutoscaleInterval(long autoscaleInterval)
+    {
+        this.autoscaleInterval = autoscaleInterval;
+    }
+
+    /**
+     * Returns the number of unacknowledged requests delivered to each consumer.
+     */
+    public int getPrefetchCount()
+    {
+        return prefetchCount;
+    }
+
+    /**
+     * Sets the number of unacknowledged requests delivered to each consumer,
+     * 1 by default. A high prefetch count saves round trips for short calls,
+     * a prefetch count of 1 dispatches the long calls fairly between the
+     * endpoints consuming the same queue. The requests handled by
+     * asynchronous service methods are acknowledged when their reply is
+     * sent, the prefetch count bounds the number of these requests in
+     * progress for each consumer.
+     */
+    public void setPrefetchCount(int prefetchCount)
+    {
+        this.prefetchCount = prefetchCount;
+    }
+
+    /**
+     * Returns the maximum priority of the request queue.
+     */
+    public int getMaxPriority()
+    {
+        return maxPriority;
+    }
+
+    /**
+     * Sets the maximum priority of the request queue, the priority of the
+     * requests is ignored if it's 0 (default). It must be the same as the
+     * maximum priority of the proxies. The priority applies to the requests
+     * waiting in the queue, a low prefetch count lets the urgent requests
+     * overtake the others. This requires RabbitMQ 3.5 or later.
+     */
+    public void setMaxPriority(int maxPriority)
+    {
+        this.maxPriority = maxPriority;
+    }
+
+    /**
+     * Returns the acknowledge mode of the requests.
+     */
+    public AcknowledgeMode getAcknowledgeMode()
+    {
+        return acknowledgeMode;
+    }
+
+    /**
+     * Sets the acknowledge mode of the requests:
+     * <ul>
+     *   <li>MANUAL (default): each request is acknowledged when its reply is sent</li>
+     *   <li>AUTO: the requests are acknowledged by the consumer once handled, in batches
+     *       of txSize requests. The asynchronous methods and the requests given to the
+     *       executor are acknowledged before the reply is sent.</li>
+     *   <li>NONE: the requests are acknowledged by the broker on delivery, the prefetch
+     *       count doesn't apply and the requests are lost if the endpoint fails</li>
+     * </ul>
+     */
+    public void setAcknowledgeMode(AcknowledgeMode acknowledgeMode)
+    {
+        this.acknowledgeMode = acknowledgeMode;
+    }
+
+    /**
+     * Returns the number of requests acknowledged together in the AUTO
+     * acknowledge mode.
+     */
+    public int getTxSize()
+    {
+        return txSize;
+    }
+
+    /**
+     * Sets the number of requests acknowledged together in the AUTO
+     * acknowledge mode, 1 by default. Batching the acknowledgements saves
+     * a frame per request for short calls, the prefetch count must be at
+     * least as large. A partial batch is acknowledged when no request is
+     * received for the receive timeout.
+     */
+    public void setTxSize(int txSize)
+    {
+        this.txSize = txSize;
+    }
+
+    /**
+     * Returns the time in milliseconds the consumers wait for a request.
+     */
+    public long getReceiveTimeout()
+    {
+        return receiveTimeout;
+    }
+
+    /**
+     * Sets the time in milliseconds the consumers wait for a request before
+     * acknowledging a partial batch, 1 second by default.
+     */
+    public void setReceiveTimeout(long receiveTimeout)
+    {
+        this.receiveTimeout = receiveTimeout;
+    }
+
+    /**
+     * Returns the executor invoking the service, or null if the service is
+     * invoked by the consumer threads.
+     */
+    public Executor getExecutor()
+    {
+        return executor;
+    }
+
+    /**
+     * Sets the executor invoking the service. The consumer threads hand the
+     * requests to the executor and fetch the next ones, the parallelism of
+     * the service is thus independent of the number of consumers and AMQP
+     * channels. The requests in progress are bounded by the prefetch count
+     * multiplied by the number of consumers, and are not processed in order.
+     * The requests rejected by the executor are processed by the consumer
+     * thread. The executor isn't shut down with the endpoint.
+     */
+    public void setExecutor(Executor executor)
+    {
+        this.executor = executor;
+    }
+
+    /**
+     * Indicates if the calls of the batch requests are processed in parallel
+     * by the executor.
+     */
+    public boolean isParallelBatches()
+    {
+        return parallelBatches;
+    }
+
+    /**
+     * Specifies if the calls of the batch requests, sent by proxies batching
+     * their calls or by bulk invocations, are processed in parallel by the
+     * executor. By default the calls of a batch are processed in order by
+     * the thread processing the batch. The reply to the batch is sent once
+     * all its calls complete.
+     */
+    public void setParallelBatches(boolean parallelBatches)
+    {
+        this.parallelBatches = parallelBatches;
+    }
+
+    /**
+     * Returns the minimum size in bytes of the compressed replies.
+     */
+    public int getCompressionThreshold()
+    {
+        return compressionThreshold;
+    }
+
+    /**
+     * Sets the minimum size in bytes of the compressed replies. The replies
+     * are compressed only if the client accepts compressed replies and if
+     * they are larger than this threshold.
+     */
+    public void setCompressionThreshold(int compressionThreshold)
+    {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * Registers additional compression codecs. A codec replaces the default
+     * codec with the same encoding.
+     */
+    public void setCompressionCodecs(List<CompressionCodec> codecs)
+    {
+        compressionCodecs.register(codecs);
+    }
+
+    /**
+     * Registers the preset dictionaries of the deflate messages. The requests
+     * are decompressed with the dictionary they name, and the replies to
+     * these requests are compressed with the same dictionary. Several
+     * dictionaries can be registered to replace a dictionary progressively.
+     */
+    public void setCompressionDictionaries(List<CompressionDictionary> dictionaries)
+    {
+        for (CompressionDictionary dictionary : dictionaries)
+        {
+            compressionCodecs.register(dictionary);
+        }
+    }
+
+    /**
+     * Returns the number of requests dropped because they were received
+     * after their deadline, when the client no longer waited for the reply.
+     * The clocks of the clients and the endpoints must be synchronized.
+     */
+    public long getExpiredRequestCount()
+    {
+        return delegate != null ? delegate.getExpiredRequestCount() : 0;
+    }
+
     /**
      * Sets the serializer send collection java type.
      */
@@ -172,7 +547,7 @@ public class HessianEndpoint implements InitializingBean, DisposableBean
         getSerializerFactory().setSendCollectionType(sendType);
     }
 
-    private Class<?> findRemoteAPI(Class<?> implClass)
+    static Class<?> findRemoteAPI(Class<?> implClass)
     {
         if (implClass == null)
         {
@@ -204,6 +579,40 @@ public class HessianEndpoint implements InitializingBean, DisposableBean
         return requestQueue;
     }
 
+    /**
+     * Returns the name of the queue consumed by the endpoint.
+     */
+    String getQueueName()
+    {
+        return getRequestQueueName(serviceAPI);
+    }
+
+    /**
+     * Returns the names of the queues consumed by the endpoint, the shards
+     * of the request queue.
+     */
+    String[] getQueueNames()
+    {
+        if (affinity)
+        {
+            if (affinityQueueName == null)
+            {
+                affinityQueueName = AffinityRouter.getExchangeName(getQueueName()) + "." + UUID.randomUUID();
+            }
+            return new String[] { affinityQueueName };
+        }
+        
+        return ShardRouter.getShardNames(getQueueName(), shards);
+    }
+
+    /**
+     * Creates the listener processing the requests.
+     */
+    RawMessageDelegate createDelegate()
+    {
+        return new RawMessageDelegate(serviceAPI, serviceImpl, serializerFactory, compressionCodecs);
+    }
+
     /**
      * Create a queue.
      * 
@@ -212,7 +621,22 @@ public class HessianEndpoint implements InitializingBean, DisposableBean
      */
     private void createQueue(AmqpAdmin admin, String name)
     {
-        Queue requestQueue = new Queue(name, false, false, false);
+        if (affinity)
+        {
+            // the queue of the instance is deleted with its consumers, its keys move to the other queues
+            Queue requestQueue = new Queue(name, false, false, true, 
+                    AMQPHessianProxyFactory.getQueueArguments(maxPriority));
+            admin.declareQueue(requestQueue);
+            CustomExchange exchange = new CustomExchange(AffinityRouter.getExchangeName(getQueueName()), 
+                    AffinityRouter.EXCHANGE_TYPE, false, false);
+            admin.declareExchange(exchange);
+            admin.declareBinding(BindingBuilder.bind(requestQueue).to(exchange)
+                    .with(Integer.toString(affinityWeight)).noargs());
+            return;
+        }
+        
+        Queue requestQueue = new Queue(name, false, false, false, 
+                AMQPHessianProxyFactory.getQueueArguments(maxPriority));
         admin.declareQueue(requestQueue);
     }
 
@@ -224,35 +648,88 @@ public class HessianEndpoint implements InitializingBean, DisposableBean
      */
     public void run()
     {
-        logger.debug("Launching endpoint for service : " + serviceAPI.getSimpleName());
+        if (affinity && shards > 1)
+        {
+            throw new IllegalArgumentException("The affinity mode can't be combined with sharded queues");
+        }
+        final String[] queueNames = getQueueNames();
+        logger.debug("Launching endpoint for queue : " + getQueueName());
         admin = new RabbitAdmin(connectionFactory);
-        // Add connectionListener to recreate queue when connection fall
-        connectionFactory.addConnectionListener(new ConnectionListener() {
-            public void onCreate(Connection connection) {
-                 createQueue(admin, getRequestQueueName(serviceAPI));
-            }
-            
-            public void onClose(Connection connection) {
-            }
-            
-        });
+        // Add connectionListener to recreate queue when connection fall, once if the endpoint is run again
+        if (connectionListener == null){
+            connectionListener = new ConnectionListener() {
+                public void onCreate(Connection connection) {
+                    if (!running){
+                        return;
+                    }
+                    for (String queueName : getQueueNames()){
+                        createQueue(admin, queueName);
+                    }
+                }
+                
+                public void onClose(Connection connection) {
+                }
+                
+            };
+            connectionFactory.addConnectionListener(connectionListener);
+        }
+        running = true;
         
         // Create the queue normaly the first time
-        this.createQueue(admin, getRequestQueueName(serviceAPI));
+        for (String queueName : queueNames){
+            this.createQueue(admin, queueName);
+        }
         
-        MessageListenerAdapter listenerAdapter = new MessageListenerAdapter(
-                new RawMessageDelegate(serviceAPI, serviceImpl, serializerFactory));
-        listenerAdapter.setMessageConverter(null);
-        listenerAdapter.setMandatoryPublish(false);
+        delegate = createDelegate();
+        delegate.setCompressionThreshold(compressionThreshold);
+        // with the manual mode the requests are acknowledged when replied
+        delegate.setAcknowledgeMode(acknowledgeMode);
+        delegate.setExecutor(executor);
+        delegate.setParallelBatches(parallelBatches);
         
-        listenerContainer = new SimpleMessageListenerContainer();
-        listenerContainer.setConnectionFactory(connectionFactory);
-        listenerContainer.setQueueNames(getRequestQueueName(serviceAPI));
-        listenerContainer.setMessageListener(listenerAdapter);
-        if (this.concurentConsumers > 0){
-            listenerContainer.setConcurrentConsumers(concurentConsumers);
-        }
+        int consumers = Math.max(1, concurentConsumers);
+        listenerContainer = createListenerContainer(consumers, delegate);
         listenerContainer.start();
+        
+        if (maxConcurentConsumers > consumers){
+            autoscaler = new ConsumerAutoscaler(this, new RabbitTemplate(connectionFactory), queueNames, 
+                    consumers, maxConcurentConsumers, scaleUpBacklog);
+            autoscaler.start(autoscaleInterval);
+        }
+    }
+    
+    /**
+     * Returns the delegate processing the requests, null until the endpoint is started.
+     */
+    RawMessageDelegate getDelegate()
+    {
+        return delegate;
+    }
+    
+    /**
+     * Creates a listener container consuming the request queue.
+     * 
+     * @param consumers the number of concurrent consumers
+     * @param listener the listener processing the requests
+     */
+    SimpleMessageListenerContainer createListenerContainer(int consumers, Object listener)
+    {
+        SimpleMessageListenerContainer container = new SimpleMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        container.setQueueNames(getQueueNames());
+        container.setMessageListener(listener);
+        container.setAcknowledgeMode(acknowledgeMode);
+        container.setConcurrentConsumers(consumers);
+        if (this.prefetchCount > 0){
+            container.setPrefetchCount(prefetchCount);
+        }
+        if (this.txSize > 0){
+            container.setTxSize(txSize);
+        }
+        if (this.receiveTimeout > 0){
+            container.setReceiveTimeout(receiveTimeout);
+        }
+        return container;
     }
     
     public void afterPropertiesSet() throws Exception {
@@ -263,10 +740,20 @@ public class HessianEndpoint implements InitializingBean, DisposableBean
     }
     
     /**
-     * Destroys the listenerContainer instance.
+     * Destroys the listener containers and releases the resources of
+     * the compression codecs. The pending batches are executed first, so
+     * that their replies are sent on the channels of the containers.
      */
     public void destroy() {
+        running = false;
+        if (this.delegate != null){
+            this.delegate.destroy();
+        }
+        if (this.autoscaler != null){
+            this.autoscaler.destroy();
+        }
         this.listenerContainer.destroy();
+        this.compressionCodecs.destroy();
     }
 
     
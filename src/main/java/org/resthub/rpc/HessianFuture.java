@@ -0,0 +1,210 @@
+/**
+ * Copyright 2013 resthub.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.resthub.rpc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Result of an asynchronous Hessian call.
+ *
+ * Service interface methods declaring a {@link Future} or a HessianFuture
+ * return type are invoked asynchronously by {@link AMQPHessianProxy}: the
+ * request is published and the future is completed by the reply listener.
+ *
+ * Callbacks are invoked by the thread completing the future, usually the
+ * reply listener thread, and must not block.
+ *
+ * @param <V> the type of the result
+ */
+public class HessianFuture<V> implements Future<V>
+{
+    private static final Logger logger = LoggerFactory.getLogger(HessianFuture.class);
+
+    private boolean done;
+    private boolean cancelled;
+    private V value;
+    private Throwable failure;
+    private List<HessianCallback<? super V>> callbacks;
+
+    /**
+     * Completes the future with the specified value.
+     *
+     * @return false if the future was already completed
+     */
+    public boolean set(V value)
+    {
+        return complete(value, null, false);
+    }
+
+    /**
+     * Completes the future with the specified failure.
+     *
+     * @return false if the future was already completed
+     */
+    public boolean setException(Throwable cause)
+    {
+        return complete(null, cause, false);
+    }
+
+    /**
+     * Registers a callback notified when the future completes. The callback
+     * is invoked immediately by the calling thread if the future is already
+     * completed.
+     */
+    public void addCallback(HessianCallback<? super V> callback)
+    {
+        synchronized (this)
+        {
+            if (!done)
+            {
+                if (callbacks == null)
+                {
+                    callbacks = new ArrayList<HessianCallback<? super V>>(1);
+                }
+                callbacks.add(callback);
+                return;
+            }
+        }
+        if (failure != null)
+        {
+            notifyFailure(callback, failure);
+        }
+        else
+        {
+            notifySuccess(callback, value);
+        }
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning)
+    {
+        return complete(null, new CancellationException(), true);
+    }
+
+    public synchronized boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    public synchronized boolean isDone()
+    {
+        return done;
+    }
+
+    public synchronized V get() throws InterruptedException, ExecutionException
+    {
+        while (!done)
+        {
+            wait();
+        }
+        return getValue();
+    }
+
+    public synchronized V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
+    {
+        long remaining = unit.toNanos(timeout);
+        long deadline = System.nanoTime() + remaining;
+        while (!done)
+        {
+            if (remaining <= 0)
+            {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            remaining = deadline - System.nanoTime();
+        }
+        return getValue();
+    }
+
+    private boolean complete(V result, Throwable cause, boolean cancel)
+    {
+        List<HessianCallback<? super V>> listeners;
+        synchronized (this)
+        {
+            if (done)
+            {
+                return false;
+            }
+            value = result;
+            failure = cause;
+            cancelled = cancel;
+            done = true;
+            listeners = callbacks;
+            callbacks = null;
+            notifyAll();
+        }
+        if (listeners != null)
+        {
+            for (HessianCallback<? super V> callback : listeners)
+            {
+                if (cause != null)
+                {
+                    notifyFailure(callback, cause);
+                }
+                else
+                {
+                    notifySuccess(callback, result);
+                }
+            }
+        }
+        return true;
+    }
+
+    private V getValue() throws ExecutionException
+    {
+        if (cancelled)
+        {
+            throw new CancellationException();
+        }
+        if (failure != null)
+        {
+            throw new ExecutionException(failure);
+        }
+        return value;
+    }
+
+    private void notifySuccess(HessianCallback<? super V> callback, V result)
+    {
+        try
+        {
+            callback.onSuccess(result);
+        }
+        catch (RuntimeException e)
+        {
+            logger.warn("Exception thrown by callback " + callback, e);
+        }
+    }
+
+    private void notifyFailure(HessianCallback<? super V> callback, Throwable cause)
+    {
+        try
+        {
+            callback.onFailure(cause);
+        }
+        catch (RuntimeException e)
+        {
+            logger.warn("Exception thrown by callback " + callback, e);
+        }
+    }
+}
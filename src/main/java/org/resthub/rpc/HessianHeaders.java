@@ -0,0 +1,57 @@
+/**
+ * Copyright 2013 resthub.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.resthub.rpc;
+
+/**
+ * Names of the AMQP headers exchanged by the proxies and the endpoints.
+ */
+public final class HessianHeaders
+{
+    /** The content type of the Hessian messages */
+    public static final String CONTENT_TYPE = "x-application/hessian";
+
+    /** The content encodings accepted by the client for the reply, separated by commas */
+    public static final String ACCEPT_ENCODING = "hessian_accept_encoding";
+
+    /**
+     * The id of the preset dictionary of the deflate messages. Sent by the
+     * client to all requests if it has a dictionary, echoed by the endpoint
+     * on the replies compressed with the same dictionary.
+     */
+    public static final String DICTIONARY = "hessian_dictionary";
+
+    /** The name of the service called, the simple name of its interface */
+    public static final String SERVICE = "hessian_service";
+
+    /**
+     * The time in milliseconds since the epoch after which the client no
+     * longer waits for the reply. The endpoints drop the requests received
+     * after their deadline.
+     */
+    public static final String DEADLINE = "hessian_deadline";
+
+    /**
+     * The number of calls packed in a batch request or its reply. The body
+     * of the batch and of its reply frame the requests and the replies of
+     * the calls. A reply to a batch without this header is a single fault,
+     * replied to all the calls of a batch the endpoint couldn't read.
+     */
+    public static final String BATCH = "hessian_batch";
+
+    private HessianHeaders()
+    {
+    }
+}
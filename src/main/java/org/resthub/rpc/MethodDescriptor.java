@@ -0,0 +1,290 @@
+/**
+ * Copyright 2013 resthub.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.resthub.rpc;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.concurrent.Future;
+
+import com.caucho.services.server.AbstractSkeleton;
+
+/**
+ * Invocation metadata of a proxied method, computed once when the proxy
+ * is created.
+ */
+class MethodDescriptor
+{
+    /** The kind of method invoked */
+    enum Kind
+    {
+        EQUALS, HASHCODE, TOSTRING, REMOTE
+    }
+
+    private final Method method;
+    private final Kind kind;
+    private final String name;
+    private final Class<?> returnType;
+    private final boolean asynchronous;
+    private final String exchange;
+    private final String routingKey;
+    private final RequestRouter router;
+    private final int shardKeyIndex;
+    private final long timeout;
+    private final boolean compressed;
+    private final Integer priority;
+    private final long cacheTtl;
+    private final boolean singleFlight;
+
+    /**
+     * @param method            the method described
+     * @param overloadEnabled   true if the method name is mangled
+     * @param exchange          the exchange receiving the requests
+     * @param routingKey        the routing key of the requests
+     * @param options           the options of the calls, with the timeout and the compression set
+     */
+    MethodDescriptor(Method method, boolean overloadEnabled, String exchange, String routingKey, MethodOptions options)
+    {
+        this(method, overloadEnabled, exchange, routingKey, null, options);
+    }
+
+    /**
+     * @param method            the method described
+     * @param overloadEnabled   true if the method name is mangled
+     * @param exchange          the exchange receiving the requests
+     * @param routingKey        the routing key of the requests
+     * @param router            the router selecting the routing key of the requests, null if it's fixed
+     * @param options           the options of the calls, with the timeout and the compression set
+     */
+    MethodDescriptor(Method method, boolean overloadEnabled, String exchange, String routingKey, RequestRouter router, 
+            MethodOptions options)
+    {
+        this.method = method;
+        this.exchange = exchange;
+        this.routingKey = routingKey;
+        this.router = router;
+        this.timeout = options.getTimeout();
+        this.compressed = options.getCompressed();
+        this.priority = options.getPriority();
+
+        Class<?>[] params = method.getParameterTypes();
+        String methodName = method.getName();
+
+        // equals and hashCode are special cased
+        if (methodName.equals("equals") && params.length == 1 && params[0].equals(Object.class))
+        {
+            kind = Kind.EQUALS;
+        }
+        else if (methodName.equals("hashCode") && params.length == 0)
+        {
+            kind = Kind.HASHCODE;
+        }
+        else if (methodName.equals("toString") && params.length == 0)
+        {
+            kind = Kind.TOSTRING;
+        }
+        else
+        {
+            kind = Kind.REMOTE;
+        }
+
+        if (overloadEnabled && params.length > 0)
+        {
+            methodName = AbstractSkeleton.mangleName(method, false);
+        }
+        this.name = methodName;
+
+        Class<?> type = method.getReturnType();
+        this.asynchronous = Future.class.isAssignableFrom(type) && type.isAssignableFrom(HessianFuture.class);
+        this.returnType = asynchronous ? getFutureValueType(method) : type;
+        this.shardKeyIndex = getShardKeyIndex(method);
+        CachedResult cached = method.getAnnotation(CachedResult.class);
+        this.cacheTtl = cached != null ? cached.ttl() : 0;
+        this.singleFlight = method.isAnnotationPresent(SingleFlight.class);
+    }
+
+    /**
+     * Returns the index of the argument annotated with {@link ShardKey},
+     * -1 if none.
+     */
+    private static int getShardKeyIndex(Method method)
+    {
+        Annotation[][] annotations = method.getParameterAnnotations();
+        for (int i = 0; i < annotations.length; i++)
+        {
+            for (Annotation annotation : annotations[i])
+            {
+                if (annotation instanceof ShardKey)
+                {
+                    return i;
+                }
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Returns the type of the value returned by an asynchronous method.
+     * For a method returning Future&lt;T&gt; this is T, Object if the
+     * type parameter can't be determined.
+     */
+    private static Class<?> getFutureValueType(Method method)
+    {
+        Type type = method.getGenericReturnType();
+        if (type instanceof ParameterizedType)
+        {
+            Type valueType = ((ParameterizedType) type).getActualTypeArguments()[0];
+            if (valueType instanceof ParameterizedType)
+            {
+                valueType = ((ParameterizedType) valueType).getRawType();
+            }
+            if (valueType instanceof Class)
+            {
+                return (Class<?>) valueType;
+            }
+        }
+
+        return Object.class;
+    }
+
+    /**
+     * Returns the method described.
+     */
+    Method getMethod()
+    {
+        return method;
+    }
+
+    /**
+     * Returns the kind of method.
+     */
+    Kind getKind()
+    {
+        return kind;
+    }
+
+    /**
+     * Returns the name of the method sent in the request, mangled if
+     * overloaded methods are enabled.
+     */
+    String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Returns the type of the value read from the reply.
+     */
+    Class<?> getReturnType()
+    {
+        return returnType;
+    }
+
+    /**
+     * Returns the name of the exchange receiving the requests.
+     */
+    String getExchange()
+    {
+        return exchange;
+    }
+
+    /**
+     * Returns the routing key of the requests.
+     */
+    String getRoutingKey()
+    {
+        return routingKey;
+    }
+
+    /**
+     * Returns the router selecting the routing key of the requests, null
+     * if it's fixed.
+     */
+    RequestRouter getRouter()
+    {
+        return router;
+    }
+
+    /**
+     * Returns the routing key of a request without key. The router spreads
+     * these requests over the shards or the consistent hash ring.
+     */
+    String nextRoutingKey()
+    {
+        return router != null ? router.getRoutingKey(null, -1) : routingKey;
+    }
+
+    /**
+     * Returns the index of the argument routing the requests to a shard,
+     * -1 if the requests are spread over the shards in turn.
+     */
+    int getShardKeyIndex()
+    {
+        return shardKeyIndex;
+    }
+
+    /**
+     * Returns the time to wait for a reply in milliseconds.
+     */
+    long getTimeout()
+    {
+        return timeout;
+    }
+
+    /**
+     * Tells if the requests and the replies are compressed.
+     */
+    boolean isCompressed()
+    {
+        return compressed;
+    }
+
+    /**
+     * Returns the priority of the requests, null if none.
+     */
+    Integer getPriority()
+    {
+        return priority;
+    }
+
+    /**
+     * Returns the time in milliseconds the results are cached, 0 if they
+     * aren't cached.
+     */
+    long getCacheTtl()
+    {
+        return cacheTtl;
+    }
+
+    /**
+     * Tells if the identical calls in flight share a single request.
+     */
+    boolean isSingleFlight()
+    {
+        return singleFlight;
+    }
+
+    /**
+     * Tells if the method is invoked asynchronously, that's if its return
+     * type is a Future that can be fulfilled by a HessianFuture.
+     */
+    boolean isAsynchronous()
+    {
+        return asynchronous;
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ * Copyright 2013 resthub.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.resthub.rpc;
+
+/**
+ * Options of the calls to a method, set with
+ * {@link AMQPHessianProxyFactory#setMethodOptions}. The options left null
+ * are inherited from the {@link CallOptions} annotations and the proxy
+ * factory.
+ */
+public class MethodOptions
+{
+    private Long timeout;
+    private Boolean compressed;
+    private Integer priority;
+
+    public MethodOptions()
+    {
+    }
+
+    MethodOptions(Long timeout, Boolean compressed, Integer priority)
+    {
+        this.timeout = timeout;
+        this.compressed = compressed;
+        this.priority = priority;
+    }
+
+    /**
+     * Returns the options set by an annotation.
+     *
+     * @param annotation the annotation, may be null
+     */
+    static MethodOptions of(CallOptions annotation)
+    {
+        MethodOptions options = new MethodOptions();
+        if (annotation != null)
+        {
+            if (annotation.timeout() > 0)
+            {
+                options.timeout = annotation.timeout();
+            }
+            if (annotation.compression() != CallOptions.Compression.DEFAULT)
+            {
+                options.compressed = annotation.compression() == CallOptions.Compression.ENABLED;
+            }
+            if (annotation.priority() >= 0)
+            {
+                options.priority = annotation.priority();
+            }
+        }
+        
+        return options;
+    }
+
+    /**
+     * Returns these options overridden by the options set in the specified
+     * options.
+     *
+     * @param override the overriding options, may be null
+     */
+    MethodOptions merge(MethodOptions override)
+    {
+        if (override == null)
+        {
+            return this;
+        }
+        
+        return new MethodOptions(
+                override.timeout != null ? override.timeout : timeout, 
+                override.compressed != null ? override.compressed : compressed, 
+                override.priority != null ? override.priority : priority);
+    }
+
+    /**
+     * Returns the time to wait for a reply in milliseconds.
+     */
+    public Long getTimeout()
+    {
+        return timeout;
+    }
+
+    /**
+     * Sets the time to wait for a reply in milliseconds.
+     */
+    public void setTimeout(Long timeout)
+    {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Indicates if the requests and the replies are compressed.
+     */
+    public Boolean getCompressed()
+    {
+        return compressed;
+    }
+
+    /**
+     * Specifies if the requests and the replies are compressed.
+     */
+    public void setCompressed(Boolean compressed)
+    {
+        this.compressed = compressed;
+    }
+
+    /**
+     * Returns the priority of the requests.
+     */
+    public Integer getPriority()
+    {
+        return priority;
+    }
+
+    /**
+     * Sets the priority of the requests, from 0 to the maximum priority of
+     * the request queue.
+     */
+    public void setPriority(Integer priority)
+    {
+        this.priority = priority;
+    }
+}
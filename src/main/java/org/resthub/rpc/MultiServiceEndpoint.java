@@ -0,0 +1,123 @@
+/**
+ * Copyright 2013 resthub.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.resthub.rpc;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Endpoint serving several Hessian services from a single queue.
+ *
+ * The services share the queue, the listener container, its consumer
+ * threads and its channels. The requests are dispatched by the
+ * {@link HessianHeaders#SERVICE} header sent by the proxies, the simple
+ * name of the service interface. The proxies must be configured with the
+ * same queue name and prefix.
+ *
+ * The consumers, the acknowledgements, the executor and the compression
+ * are configured as for a {@link HessianEndpoint}.
+ */
+public class MultiServiceEndpoint extends HessianEndpoint
+{
+    private String queueName;
+
+    /** The services by interface */
+    private final Map<Class<?>, Object> services = new LinkedHashMap<Class<?>, Object>();
+
+    /**
+     * Creates an endpoint without services.
+     */
+    public MultiServiceEndpoint()
+    {
+        super(null, null);
+    }
+
+    /**
+     * Creates an endpoint without services consuming the specified queue.
+     *
+     * @param queueName the name of the queue
+     */
+    public MultiServiceEndpoint(String queueName)
+    {
+        this();
+        setQueueName(queueName);
+    }
+
+    /**
+     * Sets the name of the queue receiving the requests, prefixed by the
+     * queue prefix.
+     */
+    public void setQueueName(String queueName)
+    {
+        this.queueName = queueName;
+    }
+
+    /**
+     * Adds a service, identified by the simple name of its interface.
+     *
+     * @param serviceAPI the interface of the service
+     * @param serviceImpl the object implementing the service
+     */
+    public void addService(Class<?> serviceAPI, Object serviceImpl)
+    {
+        for (Class<?> api : services.keySet())
+        {
+            if (api.getSimpleName().equals(serviceAPI.getSimpleName()))
+            {
+                throw new IllegalArgumentException("Two services are named " + api.getSimpleName());
+            }
+        }
+        services.put(serviceAPI, serviceImpl);
+    }
+
+    /**
+     * Sets the services, their interface is the first interface implemented.
+     */
+    public void setServices(List<Object> services)
+    {
+        for (Object service : services)
+        {
+            addService(findRemoteAPI(service.getClass()), service);
+        }
+    }
+
+    @Override
+    String getQueueName()
+    {
+        if (queueName == null)
+        {
+            throw new IllegalArgumentException("Property 'queueName' is required");
+        }
+        return getQueuePrefix() != null ? getQueuePrefix() + "." + queueName : queueName;
+    }
+
+    @Override
+    RawMessageDelegate createDelegate()
+    {
+        if (services.isEmpty())
+        {
+            throw new IllegalArgumentException("Property 'services' is required");
+        }
+        
+        RawMessageDelegate delegate = super.createDelegate();
+        for (Map.Entry<Class<?>, Object> service : services.entrySet())
+        {
+            delegate.addService(service.getKey(), service.getValue());
+        }
+        return delegate;
+    }
+}
@@ -1,217 +1,959 @@
-/**
- * Copyright 2012 resthub.org
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- *     http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- * See the License for the specific language governing permissions and
- * limitations under the License.
- */
-package org.resthub.rpc;
-
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.zip.Deflater;
-import java.util.zip.DeflaterOutputStream;
-import java.util.zip.Inflater;
-import java.util.zip.InflaterInputStream;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-import org.springframework.amqp.core.Message;
-import org.springframework.amqp.core.MessageProperties;
-
-import com.caucho.hessian.io.AbstractHessianOutput;
-import com.caucho.hessian.io.HessianFactory;
-import com.caucho.hessian.io.HessianInputFactory;
-import com.caucho.hessian.io.SerializerFactory;
-import com.caucho.hessian.server.HessianSkeleton;
-
-/**
- * Requests processing
- * @author Antoine Neveu
- *
- */
-public class RawMessageDelegate {
-    
-    private static final Logger logger = LoggerFactory.getLogger(RawMessageDelegate.class);
-    
-    private static String SPRING_CORRELATION_ID = "spring_reply_correlation";
-    
-    private Class<?> serviceAPI;
-    private Object serviceImpl;
-    private SerializerFactory serializerFactory;
-    
-    public RawMessageDelegate(){
-        
-    }
-    
-    public RawMessageDelegate(Class<?> serviceAPI, Object serviceImpl, SerializerFactory serializerFactory){
-        this.serviceAPI = serviceAPI;
-        this.serviceImpl = serviceImpl;
-        this.serializerFactory = serializerFactory;
-    }
-    
-    /**
-     * Specifies the interface of the service.
-     */
-    public void setServiceAPI(Class<?> serviceAPI)
-    {
-        this.serviceAPI = serviceAPI;
-    }
-
-    /**
-     * Specifies the object implementing the service.
-     */
-    public void setServiceImpl(Object serviceImpl)
-    {
-        this.serviceImpl = serviceImpl;
-        
-    }
-
-    /**
-     * Sets the serializer factory.
-     */
-    public void setSerializerFactory(SerializerFactory factory)
-    {
-        serializerFactory = factory;
-    }
-
-    /**
-     * Gets the serializer factory.
-     */
-    public SerializerFactory getSerializerFactory()
-    {
-        if (serializerFactory == null)
-        {
-            serializerFactory = new SerializerFactory();
-        }
-
-        return serializerFactory;
-    }
-    
-    /**
-     * Message processing
-     * @param message
-     * @return
-     */
-    public Message handleMessage(Message message){
-        logger.debug("Message received : " + message);
-        
-        MessageProperties props = message.getMessageProperties();
-        boolean compressed = "deflate".equals(props.getContentEncoding());
-        
-        byte[] response;
-        try
-        {
-            response = createResponseBody(message.getBody(), compressed);
-        }
-        catch (Throwable e)
-        {
-            logger.error("Exception occurs during method call", e);
-            e.printStackTrace();
-            compressed = false;
-            response = createFaultBody(message.getBody(), e);
-        }
-        
-        MessageProperties messageProperties = new MessageProperties();
-        messageProperties.setContentType("x-application/hessian");
-        // Spring correlation ID
-        messageProperties.setHeader(SPRING_CORRELATION_ID, 
-                message.getMessageProperties().getHeaders().get(SPRING_CORRELATION_ID));
-        if (compressed)
-        {
-            messageProperties.setContentEncoding("deflate");
-        }
-        return new Message(response, messageProperties);
-    }
-    
-    /**
-     * Execute a request.
-     */
-    private byte[] createResponseBody(byte[] request, boolean compressed) throws Exception
-    {
-        InputStream in = new ByteArrayInputStream(request);
-        if (compressed)
-        {
-            in = new InflaterInputStream(new ByteArrayInputStream(request), new Inflater(true));
-        }
-        
-        ByteArrayOutputStream bout = new ByteArrayOutputStream();
-        OutputStream out;
-        if (compressed)
-        {
-            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
-            out = new DeflaterOutputStream(bout, deflater);
-        }
-        else
-        {
-            out = bout;
-        }
-        
-        HessianSkeleton skeleton = new HessianSkeleton(serviceImpl, serviceAPI);
-        skeleton.invoke(in, out, getSerializerFactory());
-        
-        if (out instanceof DeflaterOutputStream)
-        {
-            ((DeflaterOutputStream) out).finish();
-        }
-        out.flush();
-        out.close();
-
-        return bout.toByteArray();
-    }
-
-    private byte[] createFaultBody(byte[] request, Throwable cause)
-    {
-        try
-        {
-            ByteArrayInputStream is = new ByteArrayInputStream(request);
-            ByteArrayOutputStream os = new ByteArrayOutputStream();
-
-            AbstractHessianOutput out = createHessianOutput(new HessianInputFactory().readHeader(is), os);
-
-            out.writeFault(cause.getClass().getSimpleName(), cause.getMessage(), cause);
-            out.close();
-
-            return os.toByteArray();
-        }
-        catch (IOException e)
-        {
-            throw new RuntimeException(e);
-        }
-    }
-
-    private AbstractHessianOutput createHessianOutput(HessianInputFactory.HeaderType header, OutputStream os)
-    {
-        AbstractHessianOutput out;
-        
-        HessianFactory hessianfactory = new HessianFactory();
-        switch (header)
-        {
-            case CALL_1_REPLY_1:
-                out = hessianfactory.createHessianOutput(os);
-                break;
-
-            case CALL_1_REPLY_2:
-            case HESSIAN_2:
-                out = hessianfactory.createHessian2Output(os);
-                break;
-
-            default:
-                throw new IllegalStateException(header + " is an unknown Hessian call");
-        }
-        
-        return out;
-    }
-
-}
+/**
+ * Copyright 2012 resthub.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.resthub.rpc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.resthub.rpc.compression.CompressionCodec;
+import org.resthub.rpc.compression.CompressionCodecs;
+import org.resthub.rpc.compression.DeflateCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.AcknowledgeMode;
+import org.springframework.amqp.core.Address;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.core.ChannelAwareMessageListener;
+import org.springframework.amqp.rabbit.support.DefaultMessagePropertiesConverter;
+import org.springframework.amqp.rabbit.support.MessagePropertiesConverter;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.caucho.hessian.io.AbstractHessianOutput;
+import com.caucho.hessian.io.HessianFactory;
+import com.caucho.hessian.io.HessianInputFactory;
+import com.caucho.hessian.io.SerializerFactory;
+
+/**
+ * Requests processing
+ * 
+ * The service methods returning a {@link HessianFuture} are asynchronous,
+ * when the delegate is used as a channel aware listener the reply is
+ * published when the future completes, without holding the consumer thread.
+ * 
+ * @author Antoine Neveu
+ *
+ */
+public class RawMessageDelegate implements ChannelAwareMessageListener {
+    
+    private static final Logger logger = LoggerFactory.getLogger(RawMessageDelegate.class);
+    
+    private static String SPRING_CORRELATION_ID = "spring_reply_correlation";
+    
+    /** The encoding of the message properties */
+    private static final String ENCODING = "UTF-8";
+    
+    private final MessagePropertiesConverter propertiesConverter = new DefaultMessagePropertiesConverter();
+    
+    private Class<?> serviceAPI;
+    private Object serviceImpl;
+    private SerializerFactory serializerFactory;
+    private CompressionCodecs compressionCodecs;
+    private int compressionThreshold;
+    private AcknowledgeMode acknowledgeMode = AcknowledgeMode.AUTO;
+    private Executor executor;
+    private boolean parallelBatches;
+    
+    /** The number of requests dropped after their deadline */
+    private final AtomicLong expiredRequests = new AtomicLong();
+    
+    /** The dispatcher invoking the service, shared by all the consumer threads */
+    private volatile ServiceDispatcher dispatcher;
+    
+    /** The additional services selected by the service header, by name */
+    private final Map<String, ServiceDispatcher> services = new ConcurrentHashMap<String, ServiceDispatcher>();
+    
+    public RawMessageDelegate(){
+        this.compressionCodecs = new CompressionCodecs();
+    }
+    
+    public RawMessageDelegate(Class<?> serviceAPI, Object serviceImpl, SerializerFactory serializerFactory){
+        this(serviceAPI, serviceImpl, serializerFactory, new CompressionCodecs());
+    }
+    
+    public RawMessageDelegate(Class<?> serviceAPI, Object serviceImpl, SerializerFactory serializerFactory, CompressionCodecs compressionCodecs){
+        this.serviceAPI = serviceAPI;
+        this.serviceImpl = serviceImpl;
+        this.serializerFactory = serializerFactory;
+        this.compressionCodecs = compressionCodecs;
+        if (serviceAPI != null && serviceImpl != null)
+        {
+            this.dispatcher = createDispatcher(serviceAPI, serviceImpl);
+        }
+    }
+    
+    /**
+     * Specifies the interface of the service.
+     */
+    public void setServiceAPI(Class<?> serviceAPI)
+    {
+        this.serviceAPI = serviceAPI;
+        this.dispatcher = null;
+    }
+
+    /**
+     * Specifies the object implementing the service.
+     */
+    public void setServiceImpl(Object serviceImpl)
+    {
+        this.serviceImpl = serviceImpl;
+        this.dispatcher = null;
+    }
+
+    /**
+     * Sets the serializer factory.
+     */
+    public void setSerializerFactory(SerializerFactory factory)
+    {
+        serializerFactory = factory;
+    }
+
+    /**
+     * Gets the serializer factory.
+     */
+    public SerializerFactory getSerializerFactory()
+    {
+        if (serializerFactory == null)
+        {
+            serializerFactory = new SerializerFactory();
+        }
+
+        return serializerFactory;
+    }
+    
+    /**
+     * Registers an additional service. The requests are dispatched to the
+     * service named by their {@link HessianHeaders#SERVICE} header, the
+     * simple name of the interface, and to the main service if the header
+     * is absent or names no additional service.
+     * 
+     * @param serviceAPI the interface of the service
+     * @param serviceImpl the object implementing the service
+     */
+    public void addService(Class<?> serviceAPI, Object serviceImpl)
+    {
+        services.put(serviceAPI.getSimpleName(), createDispatcher(serviceAPI, serviceImpl));
+    }
+    
+    /**
+     * Sets the codecs used for the compressed messages.
+     */
+    public void setCompressionCodecs(CompressionCodecs compressionCodecs)
+    {
+        this.compressionCodecs = compressionCodecs;
+    }
+    
+    /**
+     * Sets the minimum size in bytes of the compressed replies.
+     */
+    public void setCompressionThreshold(int compressionThreshold)
+    {
+        this.compressionThreshold = compressionThreshold;
+    }
+    
+    /**
+     * Sets the acknowledge mode of the listener container. With the manual
+     * mode the requests are acknowledged once their reply is published.
+     */
+    public void setAcknowledgeMode(AcknowledgeMode acknowledgeMode)
+    {
+        this.acknowledgeMode = acknowledgeMode;
+    }
+    
+    /**
+     * Returns the number of requests dropped because they were received
+     * after their deadline, when the client no longer waited for the reply.
+     */
+    public long getExpiredRequestCount()
+    {
+        return expiredRequests.get();
+    }
+    
+    /**
+     * Message processing. The asynchronous service methods are waited for.
+     * @param message
+     * @return the reply, null if the request expired
+     */
+    public Message handleMessage(Message message){
+        try
+        {
+            return process(message).get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new AmqpException(e);
+        }
+        catch (ExecutionException e)
+        {
+            throw new AmqpException(e.getCause());
+        }
+    }
+    
+    /**
+     * Sets the executor invoking the service. By default the service is
+     * invoked by the consumer thread. The requests rejected by the executor
+     * are processed by the consumer thread.
+     */
+    public void setExecutor(Executor executor)
+    {
+        this.executor = executor;
+        ServiceDispatcher current = dispatcher;
+        if (current != null)
+        {
+            current.setExecutor(executor);
+        }
+        for (ServiceDispatcher service : services.values())
+        {
+            service.setExecutor(executor);
+        }
+    }
+    
+    /**
+     * Specifies if the calls of the batch requests are processed in parallel
+     * by the executor. By default the calls of a batch are processed in
+     * order by the thread processing the batch.
+     */
+    public void setParallelBatches(boolean parallelBatches)
+    {
+        this.parallelBatches = parallelBatches;
+    }
+    
+    /**
+     * Processes a request and publishes the reply on the channel, when the
+     * service method completes for the asynchronous methods. The consumer
+     * thread is released as soon as the service method returns, or as soon
+     * as the request is handed to the executor if one is set.
+     */
+    public void onMessage(Message message, Channel channel)
+    {
+        onMessage(message, channel, null);
+    }
+    
+    /**
+     * Processes a request and publishes the reply on the channel.
+     * 
+     * @param settled the callback run once the request is acknowledged or rejected, null if none
+     */
+    void onMessage(final Message message, final Channel channel, final Runnable settled)
+    {
+        if (executor != null)
+        {
+            try
+            {
+                executor.execute(new Runnable()
+                {
+                    public void run()
+                    {
+                        processAndReply(message, channel, settled);
+                    }
+                });
+                return;
+            }
+            catch (RejectedExecutionException e)
+            {
+                logger.debug("Request rejected by the executor, processing it in the consumer thread");
+            }
+        }
+        
+        processAndReply(message, channel, settled);
+    }
+    
+    /**
+     * Processes a request and publishes its reply. With the manual acknowledge
+     * mode the request is always settled: it's acknowledged once the reply
+     * is published, or rejected without requeuing if no reply can be produced.
+     */
+    private void processAndReply(Message message, final Channel channel, final Runnable settled)
+    {
+        final MessageProperties props = message.getMessageProperties();
+        HessianFuture<Message> future;
+        try
+        {
+            future = process(message);
+        }
+        catch (Throwable e)
+        {
+            logger.error("Unable to process the request " + props, e);
+            reject(channel, props);
+            notifySettled(settled);
+            return;
+        }
+        
+        future.addCallback(new HessianCallback<Message>()
+        {
+            public void onSuccess(Message reply)
+            {
+                try
+                {
+                    if (reply != null)
+                    {
+                        sendReply(channel, props, reply);
+                    }
+                }
+                finally
+                {
+                    acknowledge(channel, props);
+                    notifySettled(settled);
+                }
+            }
+
+            public void onFailure(Throwable cause)
+            {
+                logger.error("Unable to reply to the request " + props, cause);
+                reject(channel, props);
+                notifySettled(settled);
+            }
+        });
+    }
+    
+    private void notifySettled(Runnable settled)
+    {
+        if (settled != null)
+        {
+            settled.run();
+        }
+    }
+    
+    /**
+     * Processes a request.
+     * 
+     * @return the future reply, completed when the service method completes,
+     *         with null if the request expired
+     */
+    private HessianFuture<Message> process(Message message)
+    {
+        logger.debug("Message received : " + message);
+        
+        final MessageProperties props = message.getMessageProperties();
+        final HessianFuture<Message> reply = new HessianFuture<Message>();
+        
+        if (isExpired(props))
+        {
+            expiredRequests.incrementAndGet();
+            logger.debug("Dropping the request " + props + " received after its deadline");
+            reply.set(null);
+            return reply;
+        }
+        
+        byte[] request = message.getBody();
+        if (props.getHeaders().get(HessianHeaders.BATCH) != null)
+        {
+            try
+            {
+                if (props.getContentEncoding() != null)
+                {
+                    request = compressionCodecs.getRequired(props.getContentEncoding(), getDictionaryId(props)).decompress(request);
+                }
+                processBatch(props, request, reply);
+            }
+            catch (Throwable e)
+            {
+                logger.error("Unable to process the batch " + props, e);
+                replyBatchFault(props, message.getBody().length, e, reply);
+            }
+            return reply;
+        }
+        
+        HessianFuture<Void> call;
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] decoded = null;
+        try
+        {
+            if (props.getContentEncoding() != null)
+            {
+                request = compressionCodecs.getRequired(props.getContentEncoding(), getDictionaryId(props)).decompress(request);
+            }
+            decoded = request;
+            call = getDispatcher(props).invoke(new ByteArrayInputStream(request), out, getSerializerFactory());
+        }
+        catch (Throwable e)
+        {
+            logger.error("Exception occurs during method call", e);
+            // the fault is read with the protocol of the request, if it could be decompressed
+            reply.set(createReply(props, createFaultBody(decoded, e)));
+            return reply;
+        }
+        
+        final byte[] decodedRequest = decoded;
+        call.addCallback(new HessianCallback<Void>()
+        {
+            public void onSuccess(Void result)
+            {
+                reply.set(createReply(props, out.toByteArray()));
+            }
+
+            public void onFailure(Throwable cause)
+            {
+                logger.error("Exception occurs during method call", cause);
+                try
+                {
+                    reply.set(createReply(props, createFaultBody(decodedRequest, cause)));
+                }
+                catch (RuntimeException e)
+                {
+                    reply.setException(e);
+                }
+            }
+        });
+        
+        return reply;
+    }
+    
+    /**
+     * Processes the calls of a batch request, in order or in parallel by
+     * the executor, and completes the reply with the replies of all the
+     * calls once they complete. The calls received after their deadline
+     * are dropped.
+     * 
+     * @param props the properties of the batch
+     * @param batch the decompressed body of the batch
+     * @param reply the future reply to the batch
+     */
+    private void processBatch(final MessageProperties props, byte[] batch, final HessianFuture<Message> reply) 
+            throws IOException
+    {
+        List<Long> deadlines = new ArrayList<Long>();
+        final List<byte[]> requests = BatchCodec.decodeRequests(batch, deadlines);
+        final byte[][] replies = new byte[requests.size()][];
+        final AtomicInteger pending = new AtomicInteger(requests.size() + 1);
+        final HessianCallback<Void> completion = new HessianCallback<Void>()
+        {
+            public void onSuccess(Void result)
+            {
+                // the replies written before the last decrement are visible
+                if (pending.decrementAndGet() == 0)
+                {
+                    try
+                    {
+                        reply.set(createBatchReply(props, replies));
+                    }
+                    catch (Throwable e)
+                    {
+                        logger.error("Unable to encode the replies of the batch " + props, e);
+                        replyFaults(props, requests, replies, e, reply);
+                    }
+                }
+            }
+
+            public void onFailure(Throwable cause)
+            {
+                onSuccess(null);
+            }
+        };
+        
+        ServiceDispatcher dispatcher = getDispatcher(props);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < requests.size(); i++)
+        {
+            if (deadlines.get(i) < now)
+            {
+                expiredRequests.incrementAndGet();
+                completion.onSuccess(null);
+                continue;
+            }
+            
+            if (parallelBatches && executor != null)
+            {
+                final ServiceDispatcher service = dispatcher;
+                final int index = i;
+                final byte[] request = requests.get(i);
+                try
+                {
+                    executor.execute(new Runnable()
+                    {
+                        public void run()
+                        {
+                            processBatchCall(service, request, index, replies, completion);
+                        }
+                    });
+                    continue;
+                }
+                catch (RejectedExecutionException e)
+                {
+                    logger.debug("Batch call rejected by the executor, processing it in the current thread");
+                }
+            }
+            processBatchCall(dispatcher, requests.get(i), i, replies, completion);
+        }
+        
+        // the batch is complete once all the calls are dispatched
+        completion.onSuccess(null);
+    }
+    
+    /**
+     * Replies with a fault to each call of a batch whose replies can't be
+     * sent, the calls dropped after their deadline are still dropped.
+     */
+    private void replyFaults(MessageProperties props, List<byte[]> requests, byte[][] replies, Throwable cause, 
+            HessianFuture<Message> reply)
+    {
+        try
+        {
+            byte[][] faults = new byte[replies.length][];
+            for (int i = 0; i < faults.length; i++)
+            {
+                if (replies[i] != null && replies[i].length > 0)
+                {
+                    faults[i] = createFaultBody(requests.get(i), cause);
+                }
+            }
+            reply.set(createBatchReply(props, faults));
+        }
+        catch (Exception e)
+        {
+            reply.setException(e);
+        }
+    }
+    
+    /**
+     * Replies with a fault to all the calls of a batch that can't be read.
+     * The faults are framed as a batch reply if the number of calls is
+     * known, otherwise a single fault is replied, the client fails all the
+     * calls of the batch with it.
+     * 
+     * @param props the properties of the batch
+     * @param size the size of the body of the batch
+     */
+    private void replyBatchFault(MessageProperties props, int size, Throwable cause, HessianFuture<Message> reply)
+    {
+        try
+        {
+            byte[] fault = createFaultBody(null, cause);
+            int count = getBatchSize(props);
+            // each call takes at least a byte, an invalid count isn't trusted
+            if (count <= 0 || count > size)
+            {
+                reply.set(createReply(props, fault));
+                return;
+            }
+            byte[][] faults = new byte[count][];
+            Arrays.fill(faults, fault);
+            reply.set(createBatchReply(props, faults));
+        }
+        catch (Exception e)
+        {
+            reply.setException(e);
+        }
+    }
+    
+    /**
+     * Returns the number of calls of a batch announced by its header, 0 if unknown.
+     */
+    private int getBatchSize(MessageProperties props)
+    {
+        Object count = props.getHeaders().get(HessianHeaders.BATCH);
+        if (count instanceof Number)
+        {
+            return ((Number) count).intValue();
+        }
+        try
+        {
+            return Integer.parseInt(String.valueOf(count));
+        }
+        catch (NumberFormatException e)
+        {
+            return 0;
+        }
+    }
+    
+    /**
+     * Creates the reply to a batch, framing the replies of its calls.
+     */
+    private Message createBatchReply(MessageProperties props, byte[][] replies) throws IOException
+    {
+        Message reply = createReply(props, BatchCodec.encodeReplies(replies));
+        reply.getMessageProperties().setHeader(HessianHeaders.BATCH, replies.length);
+        return reply;
+    }
+    
+    /**
+     * Processes a call of a batch request.
+     * 
+     * @param dispatcher the dispatcher of the service
+     * @param request the Hessian request of the call
+     * @param index the index of the call in the batch
+     * @param replies the replies to the calls of the batch
+     * @param completion the callback notified when the call completes
+     */
+    private void processBatchCall(ServiceDispatcher dispatcher, final byte[] request, final int index, 
+            final byte[][] replies, final HessianCallback<Void> completion)
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HessianFuture<Void> call;
+        try
+        {
+            call = dispatcher.invoke(new ByteArrayInputStream(request), out, getSerializerFactory());
+        }
+        catch (Throwable e)
+        {
+            logger.error("Exception occurs during method call", e);
+            try
+            {
+                replies[index] = createFaultBody(request, e);
+            }
+            finally
+            {
+                completion.onSuccess(null);
+            }
+            return;
+        }
+        
+        call.addCallback(new HessianCallback<Void>()
+        {
+            public void onSuccess(Void result)
+            {
+                replies[index] = out.toByteArray();
+                completion.onSuccess(null);
+            }
+
+            public void onFailure(Throwable cause)
+            {
+                logger.error("Exception occurs during method call", cause);
+                try
+                {
+                    replies[index] = createFaultBody(request, cause);
+                }
+                finally
+                {
+                    completion.onSuccess(null);
+                }
+            }
+        });
+    }
+    
+    /**
+     * Creates the reply message, compressed if the client accepts it.
+     * 
+     * @param props the properties of the request
+     * @param response the body of the reply
+     */
+    private Message createReply(MessageProperties props, byte[] response)
+    {
+        String dictionaryId = getDictionaryId(props);
+        
+        MessageProperties messageProperties = new MessageProperties();
+        messageProperties.setContentType(HessianHeaders.CONTENT_TYPE);
+        // Spring correlation ID
+        messageProperties.setHeader(SPRING_CORRELATION_ID, props.getHeaders().get(SPRING_CORRELATION_ID));
+        if (response.length >= compressionThreshold)
+        {
+            String replyEncoding = getReplyEncoding(props);
+            // the reply uses the dictionary of the request if it's known and applicable
+            if (!DeflateCodec.ENCODING.equals(replyEncoding) || !compressionCodecs.hasDictionary(dictionaryId))
+            {
+                dictionaryId = null;
+            }
+            CompressionCodec codec = compressionCodecs.get(replyEncoding, dictionaryId);
+            if (codec != null)
+            {
+                try
+                {
+                    response = codec.compress(response);
+                    messageProperties.setContentEncoding(codec.getEncoding());
+                    if (dictionaryId != null)
+                    {
+                        messageProperties.setHeader(HessianHeaders.DICTIONARY, dictionaryId);
+                    }
+                }
+                catch (IOException e)
+                {
+                    logger.warn("Unable to compress the reply, sending it uncompressed", e);
+                }
+            }
+        }
+        return new Message(response, messageProperties);
+    }
+    
+    /**
+     * Publishes the reply to the reply address of the request, with the
+     * correlation id of the request.
+     */
+    private void sendReply(Channel channel, MessageProperties props, Message reply)
+    {
+        Address replyTo = props.getReplyToAddress();
+        if (replyTo == null)
+        {
+            logger.warn("No reply address for the request " + props + ", the reply is dropped");
+            return;
+        }
+        
+        byte[] correlationId = props.getCorrelationId();
+        if (correlationId == null && props.getMessageId() != null)
+        {
+            try
+            {
+                correlationId = props.getMessageId().getBytes(ENCODING);
+            }
+            catch (UnsupportedEncodingException e)
+            {
+                throw new IllegalStateException(e);
+            }
+        }
+        reply.getMessageProperties().setCorrelationId(correlationId);
+        
+        try
+        {
+            BasicProperties replyProps = propertiesConverter.fromMessageProperties(reply.getMessageProperties(), ENCODING);
+            channel.basicPublish(replyTo.getExchangeName(), replyTo.getRoutingKey(), false, replyProps, reply.getBody());
+        }
+        catch (IOException e)
+        {
+            logger.error("Unable to send the reply to " + replyTo, e);
+        }
+    }
+    
+    /**
+     * Acknowledges the request if the acknowledge mode is manual.
+     */
+    private void acknowledge(Channel channel, MessageProperties props)
+    {
+        if (acknowledgeMode != AcknowledgeMode.MANUAL)
+        {
+            return;
+        }
+        
+        try
+        {
+            channel.basicAck(props.getDeliveryTag(), false);
+        }
+        catch (IOException e)
+        {
+            // the request is redelivered once the channel is closed
+            logger.error("Unable to acknowledge the request " + props, e);
+        }
+    }
+    
+    /**
+     * Rejects the request without requeuing it if the acknowledge mode is
+     * manual, a request that can't be replied would fail again.
+     */
+    private void reject(Channel channel, MessageProperties props)
+    {
+        if (acknowledgeMode != AcknowledgeMode.MANUAL)
+        {
+            return;
+        }
+        
+        try
+        {
+            channel.basicReject(props.getDeliveryTag(), false);
+        }
+        catch (IOException e)
+        {
+            // the request is redelivered once the channel is closed
+            logger.error("Unable to reject the request " + props, e);
+        }
+    }
+    
+    /**
+     * Tells if the client stopped waiting for the reply to the request.
+     */
+    private boolean isExpired(MessageProperties props)
+    {
+        Object deadline = props.getHeaders().get(HessianHeaders.DEADLINE);
+        return deadline instanceof Number && ((Number) deadline).longValue() < System.currentTimeMillis();
+    }
+    
+    private String getDictionaryId(MessageProperties props)
+    {
+        Object dictionaryId = props.getHeaders().get(HessianHeaders.DICTIONARY);
+        return dictionaryId != null ? dictionaryId.toString() : null;
+    }
+    
+    /**
+     * Returns the encoding of the reply, that's the first encoding accepted
+     * by the client and supported by the endpoint, or null if the reply
+     * isn't compressed. The clients predating the accept encoding header
+     * only expect a compressed reply to a compressed request, with the
+     * encoding of the request.
+     */
+    private String getReplyEncoding(MessageProperties props)
+    {
+        Object acceptEncoding = props.getHeaders().get(HessianHeaders.ACCEPT_ENCODING);
+        if (acceptEncoding == null)
+        {
+            return props.getContentEncoding();
+        }
+        
+        return compressionCodecs.negotiate(acceptEncoding.toString());
+    }
+    
+    /**
+     * Returns the dispatcher of the service named by the request.
+     */
+    private ServiceDispatcher getDispatcher(MessageProperties props)
+    {
+        if (!services.isEmpty())
+        {
+            Object name = props.getHeaders().get(HessianHeaders.SERVICE);
+            ServiceDispatcher service = name != null ? services.get(name.toString()) : null;
+            if (service != null)
+            {
+                return service;
+            }
+            if (serviceAPI == null)
+            {
+                throw new IllegalStateException("No service named " + name);
+            }
+        }
+        
+        return getDispatcher();
+    }
+
+    /**
+     * Creates the dispatcher of a service, its batches are executed by the executor.
+     */
+    private ServiceDispatcher createDispatcher(Class<?> serviceAPI, Object serviceImpl)
+    {
+        ServiceDispatcher result = new ServiceDispatcher(serviceAPI, serviceImpl);
+        result.setExecutor(executor);
+        return result;
+    }
+
+    /**
+     * Executes the pending batches of the services and stops their schedulers.
+     * The calls received afterwards aren't batched.
+     */
+    public void destroy()
+    {
+        ServiceDispatcher current = dispatcher;
+        if (current != null)
+        {
+            current.destroy();
+        }
+        for (ServiceDispatcher service : services.values())
+        {
+            service.destroy();
+        }
+    }
+
+    /**
+     * Returns the dispatcher of the service. It's created once, when the
+     * service is known, and shared by the consumer threads.
+     */
+    private ServiceDispatcher getDispatcher()
+    {
+        ServiceDispatcher result = dispatcher;
+        if (result == null)
+        {
+            result = createDispatcher(serviceAPI, serviceImpl);
+            dispatcher = result;
+        }
+        return result;
+    }
+
+    /**
+     * Creates the fault replied to a request.
+     * 
+     * @param request the decompressed request, null if it couldn't be decompressed
+     * @param cause the exception sent to the client
+     */
+    private byte[] createFaultBody(byte[] request, Throwable cause)
+    {
+        HessianInputFactory.HeaderType header = getHeader(request);
+        try
+        {
+            return writeFault(header, cause, cause);
+        }
+        catch (Exception e)
+        {
+            logger.warn("Unable to serialize the exception " + cause.getClass().getName() + ", sending the fault without it", e);
+            try
+            {
+                return writeFault(header, cause, null);
+            }
+            catch (IOException ex)
+            {
+                throw new IllegalStateException(ex);
+            }
+        }
+    }
+
+    private byte[] writeFault(HessianInputFactory.HeaderType header, Throwable cause, Object detail) throws IOException
+    {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        AbstractHessianOutput out = createHessianOutput(header, os);
+        out.writeFault(cause.getClass().getSimpleName(), cause.getMessage(), detail);
+        out.close();
+
+        return os.toByteArray();
+    }
+
+    /**
+     * Returns the Hessian header of a request, Hessian 2 if the request
+     * can't be read.
+     */
+    private HessianInputFactory.HeaderType getHeader(byte[] request)
+    {
+        if (request != null)
+        {
+            try
+            {
+                HessianInputFactory.HeaderType header = new HessianInputFactory().readHeader(new ByteArrayInputStream(request));
+                if (header.isCall1() || header.isCall2())
+                {
+                    return header;
+                }
+            }
+            catch (IOException e)
+            {
+                logger.debug("Unable to read the header of the request, replying with a Hessian 2 fault", e);
+            }
+        }
+        
+        return HessianInputFactory.HeaderType.HESSIAN_2;
+    }
+
+    private AbstractHessianOutput createHessianOutput(HessianInputFactory.HeaderType header, OutputStream os)
+    {
+        AbstractHessianOutput out;
+        
+        HessianFactory hessianfactory = new HessianFactory();
+        switch (header)
+        {
+            case CALL_1_REPLY_1:
+                out = hessianfactory.createHessianOutput(os);
+                break;
+
+            case CALL_1_REPLY_2:
+            case HESSIAN_2:
+                out = hessianfactory.createHessian2Output(os);
+                break;
+
+            default:
+                throw new IllegalStateException(header + " is an unknown Hessian call");
+        }
+        
+        return out;
+    }
+
+}
@@ -0,0 +1,559 @@
+/**
+ * Copyright 2013 resthub.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.resthub.rpc;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.AcknowledgeMode;
+import org.springframework.amqp.core.AmqpAdmin;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageListener;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.core.Queue;
+import org.springframework.amqp.rabbit.connection.Connection;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.connection.ConnectionListener;
+import org.springframework.amqp.rabbit.connection.ConnectionProxy;
+import org.springframework.amqp.rabbit.core.RabbitAdmin;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.amqp.rabbit.support.DefaultMessagePropertiesConverter;
+import org.springframework.amqp.rabbit.support.MessagePropertiesConverter;
+import org.springframework.amqp.rabbit.support.RabbitExceptionTranslator;
+
+import com.caucho.hessian.client.HessianRuntimeException;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+
+/**
+ * Publishes the requests and routes the replies to the calls waiting for them.
+ *
+ * The requests are published on a single channel pinned by the dispatcher,
+ * the replies are consumed from one reply queue and matched to the pending
+ * calls by their correlation id. Concurrent callers share the reply stream
+ * without going through the locks of a RabbitTemplate.
+ *
+ * If the reply queue is {@link #DIRECT_REPLY_TO} no queue is declared, the
+ * replies are consumed with RabbitMQ's direct reply-to feature on the
+ * channel publishing the requests.
+ *
+ * A dispatcher is shared by all the proxy factories using the same connection
+ * factory, see {@link #acquire(ConnectionFactory, String, boolean)}.
+ */
+class ReplyDispatcher implements MessageListener
+{
+    private static final Logger logger = LoggerFactory.getLogger(ReplyDispatcher.class);
+
+    /** The pseudo queue used by RabbitMQ for direct replies */
+    static final String DIRECT_REPLY_TO = "amq.rabbitmq.reply-to";
+
+    private static final String ENCODING = "UTF-8";
+
+    /** The shared dispatchers by connection factory, queue prefix and reply mode */
+    private static final Map<ConnectionFactory, Map<String, ReplyDispatcher>> dispatchers = new IdentityHashMap<ConnectionFactory, Map<String, ReplyDispatcher>>();
+
+    /** The listeners registered once per connection factory, the listeners can't be removed from a factory */
+    private static final Map<ConnectionFactory, ReplyQueueListener> listeners = new WeakHashMap<ConnectionFactory, ReplyQueueListener>();
+
+    private final ConnectionFactory connectionFactory;
+    private final String replyQueueName;
+    private final MessagePropertiesConverter messagePropertiesConverter = new DefaultMessagePropertiesConverter();
+
+    /** The calls waiting for their reply, by correlation id */
+    private final ConcurrentMap<String, HessianFuture<Message>> pendingCalls = new ConcurrentHashMap<String, HessianFuture<Message>>();
+
+    /** Correlation ids are built from a random prefix and a sequence */
+    private final String correlationPrefix = UUID.randomUUID().toString() + "-";
+    private final AtomicLong correlationSequence = new AtomicLong();
+
+    private AmqpAdmin admin;
+    private SimpleMessageListenerContainer listener;
+    private ScheduledExecutorService timeoutScheduler;
+
+    /** The channel used to publish the requests */
+    private volatile Channel channel;
+    /** The tag of the direct reply-to consumer registered on the channel */
+    private String consumerTag;
+
+    /** The number of proxy factories using the dispatcher */
+    private int references;
+    private String key;
+
+    ReplyDispatcher(ConnectionFactory connectionFactory, String replyQueueName)
+    {
+        this.connectionFactory = connectionFactory;
+        this.replyQueueName = replyQueueName;
+    }
+
+    /**
+     * Returns the dispatcher shared by the proxy factories using the specified
+     * connection factory. The dispatcher is started on the first call, and
+     * must be released when it's no longer used.
+     *
+     * @param connectionFactory the connection factory
+     * @param queuePrefix       the prefix of the reply queue, or null
+     * @param directReplyTo     true to use the direct reply-to instead of a reply queue
+     */
+    static ReplyDispatcher acquire(ConnectionFactory connectionFactory, String queuePrefix, boolean directReplyTo)
+    {
+        synchronized (dispatchers)
+        {
+            Map<String, ReplyDispatcher> shared = dispatchers.get(connectionFactory);
+            if (shared == null)
+            {
+                shared = new HashMap<String, ReplyDispatcher>();
+                dispatchers.put(connectionFactory, shared);
+            }
+
+            String key = directReplyTo ? DIRECT_REPLY_TO : String.valueOf(queuePrefix);
+            ReplyDispatcher dispatcher = shared.get(key);
+            if (dispatcher == null)
+            {
+                dispatcher = new ReplyDispatcher(connectionFactory, directReplyTo ? DIRECT_REPLY_TO : getReplyQueueName(queuePrefix));
+                dispatcher.key = key;
+                dispatcher.start();
+                shared.put(key, dispatcher);
+                if (!directReplyTo)
+                {
+                    ReplyQueueListener listener = listeners.get(connectionFactory);
+                    if (listener == null)
+                    {
+                        listener = new ReplyQueueListener();
+                        connectionFactory.addConnectionListener(listener);
+                        listeners.put(connectionFactory, listener);
+                    }
+                    listener.dispatchers.add(dispatcher);
+                }
+            }
+            dispatcher.references++;
+
+            return dispatcher;
+        }
+    }
+
+    /**
+     * Releases a dispatcher returned by {@link #acquire(ConnectionFactory, String, boolean)}.
+     * The dispatcher is destroyed when it's no longer used by any proxy factory.
+     */
+    static void release(ReplyDispatcher dispatcher)
+    {
+        synchronized (dispatchers)
+        {
+            if (--dispatcher.references > 0)
+            {
+                return;
+            }
+
+            Map<String, ReplyDispatcher> shared = dispatchers.get(dispatcher.connectionFactory);
+            if (shared != null)
+            {
+                shared.remove(dispatcher.key);
+                if (shared.isEmpty())
+                {
+                    dispatchers.remove(dispatcher.connectionFactory);
+                }
+            }
+            ReplyQueueListener listener = listeners.get(dispatcher.connectionFactory);
+            if (listener != null)
+            {
+                listener.dispatchers.remove(dispatcher);
+            }
+        }
+
+        dispatcher.destroy();
+    }
+
+    /**
+     * Return the name of a new reply queue.
+     */
+    private static String getReplyQueueName(String queuePrefix)
+    {
+        String replyQueue = "hessian-reply-" + UUID.randomUUID().toString();
+        if (queuePrefix != null)
+        {
+            replyQueue = queuePrefix + "." + replyQueue;
+        }
+
+        return replyQueue;
+    }
+
+    /**
+     * Declares the reply queue and starts consuming the replies.
+     */
+    synchronized void start()
+    {
+        if (timeoutScheduler != null)
+        {
+            return;
+        }
+
+        timeoutScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "AMQPHessianProxy-timeout");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        if (isDirectReplyTo())
+        {
+            // the consumer is registered with the channel publishing the requests
+            getChannel();
+            return;
+        }
+
+        admin = new RabbitAdmin(connectionFactory);
+        Queue replyQueue = createReplyQueue();
+
+        listener = new SimpleMessageListenerContainer(connectionFactory);
+        listener.setMessageListener(this);
+        listener.setQueues(replyQueue);
+        listener.setAcknowledgeMode(AcknowledgeMode.NONE);
+        listener.start();
+    }
+
+    /**
+     * Declares the reply queue again on reconnection, it's deleted with the connection.
+     */
+    private synchronized void onConnectionCreated()
+    {
+        if (listener != null)
+        {
+            createReplyQueue();
+        }
+    }
+
+    /**
+     * The connection listener of a connection factory, declaring the reply
+     * queues of the live dispatchers using the factory. The listener runs in
+     * the thread creating the connection, it doesn't take the lock of the
+     * shared dispatchers.
+     */
+    private static class ReplyQueueListener implements ConnectionListener
+    {
+        private final List<ReplyDispatcher> dispatchers = new CopyOnWriteArrayList<ReplyDispatcher>();
+
+        public void onCreate(Connection connection)
+        {
+            for (ReplyDispatcher dispatcher : dispatchers)
+            {
+                try
+                {
+                    dispatcher.onConnectionCreated();
+                }
+                catch (RuntimeException e)
+                {
+                    logger.warn("Unable to declare the reply queue " + dispatcher.replyQueueName, e);
+                }
+            }
+        }
+
+        public void onClose(Connection connection)
+        {
+        }
+    }
+
+    private boolean isDirectReplyTo()
+    {
+        return DIRECT_REPLY_TO.equals(replyQueueName);
+    }
+
+    private Queue createReplyQueue()
+    {
+        Queue replyQueue = new Queue(replyQueueName, false, true, false);
+        admin.declareQueue(replyQueue);
+        return replyQueue;
+    }
+
+    /**
+     * Publishes a request and waits for the reply.
+     *
+     * @param exchange     the exchange receiving the request
+     * @param routingKey   the routing key of the request
+     * @param message      the request
+     * @param timeout      the maximum time to wait for the reply in milliseconds
+     * @return the reply, or null if no reply was received before the timeout
+     * @throws HessianRuntimeException if the thread is interrupted while waiting for the reply
+     */
+    Message sendAndReceive(String exchange, String routingKey, Message message, long timeout) throws IOException
+    {
+        String correlationId = nextCorrelationId();
+        HessianFuture<Message> reply = register(correlationId, message);
+        publish(exchange, routingKey, message, correlationId);
+
+        try
+        {
+            return reply.get(timeout, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e)
+        {
+            pendingCalls.remove(correlationId);
+            return null;
+        }
+        catch (InterruptedException e)
+        {
+            pendingCalls.remove(correlationId);
+            Thread.currentThread().interrupt();
+            throw new HessianRuntimeException("Interrupted while waiting for the reply", e);
+        }
+        catch (ExecutionException e)
+        {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Publishes a request without waiting for the reply. The future returned
+     * is completed when the reply is received, or fails with a TimeoutException
+     * if no reply is received before the timeout.
+     *
+     * @param exchange     the exchange receiving the request
+     * @param routingKey   the routing key of the request
+     * @param message      the request
+     * @param timeout      the maximum time to wait for the reply in milliseconds
+     * @return the future reply
+     */
+    HessianFuture<Message> send(String exchange, String routingKey, Message message, long timeout)
+    {
+        final String correlationId = nextCorrelationId();
+        HessianFuture<Message> reply = register(correlationId, message);
+
+        timeoutScheduler.schedule(new Runnable()
+        {
+            public void run()
+            {
+                HessianFuture<Message> expired = pendingCalls.remove(correlationId);
+                if (expired != null)
+                {
+                    expired.setException(new TimeoutException());
+                }
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+
+        try
+        {
+            publish(exchange, routingKey, message, correlationId);
+        }
+        catch (Exception e)
+        {
+            pendingCalls.remove(correlationId);
+            reply.setException(e);
+        }
+
+        return reply;
+    }
+
+    private String nextCorrelationId()
+    {
+        return correlationPrefix + Long.toString(correlationSequence.incrementAndGet(), 36);
+    }
+
+    private HessianFuture<Message> register(String correlationId, Message message)
+    {
+        MessageProperties properties = message.getMessageProperties();
+        properties.setReplyTo(replyQueueName);
+        try
+        {
+            properties.setCorrelationId(correlationId.getBytes(ENCODING));
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new IllegalStateException(e);
+        }
+
+        HessianFuture<Message> reply = new HessianFuture<Message>();
+        pendingCalls.put(correlationId, reply);
+        return reply;
+    }
+
+    private void publish(String exchange, String routingKey, Message message, String correlationId) throws IOException
+    {
+        try
+        {
+            getChannel().basicPublish(exchange, routingKey, false,
+                    messagePropertiesConverter.fromMessageProperties(message.getMessageProperties(), ENCODING),
+                    message.getBody());
+        }
+        catch (IOException e)
+        {
+            pendingCalls.remove(correlationId);
+            throw e;
+        }
+        catch (RuntimeException e)
+        {
+            pendingCalls.remove(correlationId);
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the channel used to publish the requests, a new channel is
+     * opened if the previous one was closed. With direct reply-to the
+     * replies are consumed on this channel.
+     *
+     * The channel is opened on the target connection, it's not taken from
+     * the channel cache of a caching connection factory: closing it must not
+     * hand a channel with a live consumer to another user of the cache.
+     */
+    private Channel getChannel()
+    {
+        Channel current = channel;
+        if (current == null || !current.isOpen())
+        {
+            synchronized (this)
+            {
+                current = channel;
+                if (current == null || !current.isOpen())
+                {
+                    try
+                    {
+                        Connection connection = connectionFactory.createConnection();
+                        if (connection instanceof ConnectionProxy)
+                        {
+                            connection = ((ConnectionProxy) connection).getTargetConnection();
+                        }
+                        current = connection.createChannel(false);
+                        if (isDirectReplyTo())
+                        {
+                            consumerTag = current.basicConsume(DIRECT_REPLY_TO, true, new DirectReplyConsumer(current));
+                        }
+                    }
+                    catch (Exception e)
+                    {
+                        throw RabbitExceptionTranslator.convertRabbitAccessException(e);
+                    }
+                    channel = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Routes a reply to the pending call.
+     */
+    public void onMessage(Message message)
+    {
+        byte[] correlationId = message.getMessageProperties().getCorrelationId();
+        if (correlationId == null)
+        {
+            logger.warn("No correlation id in reply " + message);
+            return;
+        }
+
+        String id;
+        try
+        {
+            id = new String(correlationId, ENCODING);
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new IllegalStateException(e);
+        }
+
+        HessianFuture<Message> reply = pendingCalls.remove(id);
+        if (reply != null)
+        {
+            reply.set(message);
+        }
+        else
+        {
+            logger.warn("Reply received after timeout for " + id);
+        }
+    }
+
+    /**
+     * Consumer of the direct replies.
+     */
+    private class DirectReplyConsumer extends DefaultConsumer
+    {
+        DirectReplyConsumer(Channel channel)
+        {
+            super(channel);
+        }
+
+        @Override
+        public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body)
+        {
+            MessageProperties messageProperties = messagePropertiesConverter.toMessageProperties(properties, envelope, ENCODING);
+            onMessage(new Message(body, messageProperties));
+        }
+    }
+
+    /**
+     * Stops consuming the replies and fails the pending calls.
+     */
+    synchronized void destroy()
+    {
+        if (listener != null)
+        {
+            listener.destroy();
+            listener = null;
+        }
+        if (timeoutScheduler != null)
+        {
+            timeoutScheduler.shutdownNow();
+            timeoutScheduler = null;
+        }
+        if (channel != null)
+        {
+            try
+            {
+                if (consumerTag != null && channel.isOpen())
+                {
+                    channel.basicCancel(consumerTag);
+                }
+                channel.close();
+            }
+            catch (Exception e)
+            {
+                logger.debug("Unable to close the channel", e);
+            }
+            channel = null;
+            consumerTag = null;
+        }
+
+        for (Map.Entry<String, HessianFuture<Message>> entry : pendingCalls.entrySet())
+        {
+            if (pendingCalls.remove(entry.getKey()) != null)
+            {
+                entry.getValue().setException(new IllegalStateException("The proxy factory has been destroyed"));
+            }
+        }
+    }
+}
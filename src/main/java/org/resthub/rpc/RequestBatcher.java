@@ -0,0 +1,311 @@
+/**
+ * Copyright 2013 resthub.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.resthub.rpc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+/**
+ * Packs the calls of a proxy factory in batch messages.
+ *
+ * The calls to the same service with the same routing key and options are
+ * added to the same batch, which is sent when it's full or when its first
+ * call has waited for the batch delay. The calls without key of a sharded
+ * or affinity routed service share a batch, its routing key is selected
+ * when it's sent. A batch of a single call is sent
+ * as a regular request. The reply to the batch is split and each call is
+ * completed with its own reply.
+ */
+class RequestBatcher
+{
+    /**
+     * The calls sharing a batch.
+     */
+    private static final class Key
+    {
+        private final String exchange;
+        /** The routing key, null if it's selected by the router when the batch is sent */
+        private final String routingKey;
+        private final RequestRouter router;
+        private final String service;
+        private final long timeout;
+        private final Integer priority;
+        private final boolean compressed;
+
+        Key(MethodDescriptor method, String routingKey, String service)
+        {
+            this.exchange = method.getExchange();
+            this.routingKey = routingKey;
+            this.router = routingKey == null ? method.getRouter() : null;
+            this.service = service;
+            this.timeout = method.getTimeout();
+            this.priority = method.getPriority();
+            this.compressed = method.isCompressed();
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Key))
+            {
+                return false;
+            }
+            
+            Key other = (Key) obj;
+            return exchange.equals(other.exchange) 
+                    && (routingKey == null ? other.routingKey == null : routingKey.equals(other.routingKey)) 
+                    && router == other.router && service.equals(other.service) && timeout == other.timeout 
+                    && (priority == null ? other.priority == null : priority.equals(other.priority)) 
+                    && compressed == other.compressed;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (exchange.hashCode() * 31 + (routingKey != null ? routingKey.hashCode() : 0)) * 31 + service.hashCode();
+        }
+    }
+
+    /**
+     * The calls of a batch.
+     */
+    private static final class Batch
+    {
+        private final Key key;
+        private final List<byte[]> requests = new ArrayList<byte[]>();
+        private final List<Long> deadlines = new ArrayList<Long>();
+        private final List<HessianFuture<Message>> replies = new ArrayList<HessianFuture<Message>>();
+
+        Batch(Key key)
+        {
+            this.key = key;
+        }
+    }
+
+    private final AMQPHessianProxyFactory factory;
+    private final int batchSize;
+    private final long batchDelay;
+    private final ScheduledExecutorService scheduler;
+
+    /** The batches being filled */
+    private final Map<Key, Batch> batches = new HashMap<Key, Batch>();
+
+    /**
+     * @param factory       the factory sending the batches
+     * @param batchSize     the maximum number of calls in a batch
+     * @param batchDelay    the maximum time in milliseconds a call waits for other calls
+     */
+    RequestBatcher(AMQPHessianProxyFactory factory, int batchSize, long batchDelay)
+    {
+        this.factory = factory;
+        this.batchSize = batchSize;
+        this.batchDelay = batchDelay;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "AMQPHessianProxy-batcher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Adds a call to its batch.
+     *
+     * @param method        the method invoked
+     * @param routingKey    the routing key of the request, null if it's selected by the router of the method
+     * @param service       the name of the service called
+     * @param payload       the Hessian request
+     * @return the future reply of the call
+     */
+    HessianFuture<Message> add(MethodDescriptor method, String routingKey, String service, byte[] payload)
+    {
+        Key key = new Key(method, routingKey, service);
+        HessianFuture<Message> reply = new HessianFuture<Message>();
+        Batch full = null;
+        synchronized (this)
+        {
+            Batch batch = batches.get(key);
+            if (batch == null)
+            {
+                batch = new Batch(key);
+                batches.put(key, batch);
+                scheduleFlush(batch);
+            }
+            batch.requests.add(payload);
+            batch.deadlines.add(System.currentTimeMillis() + method.getTimeout());
+            batch.replies.add(reply);
+            if (batch.requests.size() >= batchSize)
+            {
+                batches.remove(key);
+                full = batch;
+            }
+        }
+        
+        if (full != null)
+        {
+            send(full);
+        }
+        
+        return reply;
+    }
+
+    private void scheduleFlush(final Batch batch)
+    {
+        scheduler.schedule(new Runnable()
+        {
+            public void run()
+            {
+                flush(batch);
+            }
+        }, batchDelay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends the batch if it wasn't sent when it was full.
+     */
+    private void flush(Batch batch)
+    {
+        synchronized (this)
+        {
+            if (batches.get(batch.key) != batch)
+            {
+                return;
+            }
+            batches.remove(batch.key);
+        }
+        
+        send(batch);
+    }
+
+    /**
+     * Sends a batch and completes its calls when the reply is received.
+     */
+    private void send(final Batch batch)
+    {
+        Key key = batch.key;
+        HessianFuture<Message> reply;
+        try
+        {
+            Message message;
+            if (batch.requests.size() == 1)
+            {
+                message = factory.createRequestMessage(key.service, batch.requests.get(0), key.compressed, 
+                        key.timeout, key.priority);
+            }
+            else
+            {
+                byte[] payload = BatchCodec.encodeRequests(batch.requests, batch.deadlines);
+                message = factory.createRequestMessage(key.service, payload, key.compressed, key.timeout, key.priority);
+                message.getMessageProperties().setHeader(HessianHeaders.BATCH, batch.requests.size());
+            }
+            // the calls without key share the routing key of their batch
+            String routingKey = key.routingKey != null ? key.routingKey : key.router.getRoutingKey(null, -1);
+            reply = factory.send(key.exchange, routingKey, message, key.timeout);
+        }
+        catch (Exception e)
+        {
+            fail(batch, e);
+            return;
+        }
+        
+        reply.addCallback(new HessianCallback<Message>()
+        {
+            public void onSuccess(Message result)
+            {
+                try
+                {
+                    complete(batch, result);
+                }
+                catch (Exception e)
+                {
+                    fail(batch, e);
+                }
+            }
+
+            public void onFailure(Throwable cause)
+            {
+                fail(batch, cause);
+            }
+        });
+    }
+
+    /**
+     * Completes the calls of a batch with their replies.
+     */
+    private void complete(Batch batch, Message reply) throws IOException
+    {
+        if (batch.replies.size() == 1)
+        {
+            batch.replies.get(0).set(reply);
+            return;
+        }
+        
+        List<byte[]> replies = factory.getBatchReplies(reply, batch.replies.size());
+        
+        for (int i = 0; i < replies.size(); i++)
+        {
+            if (replies.get(i).length == 0)
+            {
+                // dropped by the endpoint after its deadline
+                batch.replies.get(i).setException(new TimeoutException());
+                continue;
+            }
+            MessageProperties props = new MessageProperties();
+            props.setContentType(HessianHeaders.CONTENT_TYPE);
+            batch.replies.get(i).set(new Message(replies.get(i), props));
+        }
+    }
+
+    private void fail(Batch batch, Throwable cause)
+    {
+        for (HessianFuture<Message> reply : batch.replies)
+        {
+            reply.setException(cause);
+        }
+    }
+
+    /**
+     * Sends the pending batches and stops the scheduler.
+     */
+    void destroy()
+    {
+        List<Batch> pending;
+        synchronized (this)
+        {
+            pending = new ArrayList<Batch>(batches.values());
+            batches.clear();
+        }
+        for (Batch batch : pending)
+        {
+            send(batch);
+        }
+        scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,58 @@
+/**
+ * Copyright 2013 resthub.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.resthub.rpc;
+
+import java.util.Arrays;
+
+/**
+ * A serialized request, that's the method and its arguments, with its
+ * destination, compared by content.
+ */
+final class RequestKey
+{
+    private final String destination;
+    private final byte[] request;
+    private final int hash;
+
+    /**
+     * @param destination   the exchange, the routing key and the service of the proxy sending the request
+     * @param request       the serialized request
+     */
+    RequestKey(String destination, byte[] request)
+    {
+        this.destination = destination;
+        this.request = request;
+        this.hash = destination.hashCode() * 31 + Arrays.hashCode(request);
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (!(obj instanceof RequestKey))
+        {
+            return false;
+        }
+        
+        RequestKey other = (RequestKey) obj;
+        return destination.equals(other.destination) && Arrays.equals(request, other.request);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return hash;
+    }
+}
@@ -0,0 +1,30 @@
+/**
+ * Copyright 2013 resthub.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.resthub.rpc;
+
+/**
+ * Selects the routing key of the requests of a proxy.
+ */
+interface RequestRouter
+{
+    /**
+     * Returns the routing key of a request.
+     *
+     * @param args      the arguments of the request
+     * @param keyIndex  the index of the argument annotated with {@link ShardKey}, -1 if none
+     */
+    String getRoutingKey(Object[] args, int keyIndex);
+}
@@ -0,0 +1,166 @@
+/**
+ * Copyright 2013 resthub.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.resthub.rpc;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the replies of the methods annotated with {@link CachedResult},
+ * keyed by the serialized request, that's the method and its arguments,
+ * and by the destination of the request, the factory creating proxies for
+ * several services.
+ *
+ * The entries are the serialized replies, deserialized for each hit. The
+ * cache is bounded by a number of entries and a total size in bytes, the
+ * least recently used entries are evicted first.
+ */
+class ResultCache
+{
+    /**
+     * A serialized reply with its expiration time.
+     */
+    private static final class Entry
+    {
+        private final byte[] reply;
+        private final long expiration;
+
+        Entry(byte[] reply, long expiration)
+        {
+            this.reply = reply;
+            this.expiration = expiration;
+        }
+    }
+
+    private final int maxSize;
+    private final long maxBytes;
+
+    /** The entries in access order, guarded by the cache */
+    private final LinkedHashMap<RequestKey, Entry> entries = new LinkedHashMap<RequestKey, Entry>(16, 0.75f, true);
+    private long bytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxSize   the maximum number of entries
+     * @param maxBytes  the maximum total size of the replies in bytes, unbounded if 0
+     */
+    ResultCache(int maxSize, long maxBytes)
+    {
+        this.maxSize = maxSize;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the cached reply to a request.
+     *
+     * @param key the request
+     * @return the serialized reply, or null if it isn't cached or expired
+     */
+    byte[] get(RequestKey key)
+    {
+        Entry entry;
+        synchronized (this)
+        {
+            entry = entries.get(key);
+            if (entry != null && entry.expiration <= System.currentTimeMillis())
+            {
+                remove(key);
+                entry = null;
+            }
+        }
+        
+        if (entry == null)
+        {
+            misses.incrementAndGet();
+            return null;
+        }
+        
+        hits.incrementAndGet();
+        return entry.reply;
+    }
+
+    /**
+     * Caches the reply to a request.
+     *
+     * @param key       the request
+     * @param reply     the serialized reply
+     * @param ttl       the time in milliseconds the reply is cached
+     */
+    synchronized void put(RequestKey key, byte[] reply, long ttl)
+    {
+        if (maxBytes > 0 && reply.length > maxBytes)
+        {
+            return;
+        }
+        
+        remove(key);
+        entries.put(key, new Entry(reply, System.currentTimeMillis() + ttl));
+        bytes += reply.length;
+        
+        Iterator<Map.Entry<RequestKey, Entry>> eldest = entries.entrySet().iterator();
+        while (entries.size() > maxSize || (maxBytes > 0 && bytes > maxBytes))
+        {
+            bytes -= eldest.next().getValue().reply.length;
+            eldest.remove();
+        }
+    }
+
+    private void remove(RequestKey key)
+    {
+        Entry previous = entries.remove(key);
+        if (previous != null)
+        {
+            bytes -= previous.reply.length;
+        }
+    }
+
+    /**
+     * Removes all the entries.
+     */
+    synchronized void clear()
+    {
+        entries.clear();
+        bytes = 0;
+    }
+
+    /**
+     * Returns the number of cached entries, expired or not.
+     */
+    synchronized int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * Returns the number of calls answered by the cache.
+     */
+    long getHitCount()
+    {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of calls to a cached method not answered by the cache.
+     */
+    long getMissCount()
+    {
+        return misses.get();
+    }
+}
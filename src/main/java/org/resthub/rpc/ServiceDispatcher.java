@@ -0,0 +1,431 @@
+/**
+ * Copyright 2013 resthub.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.resthub.rpc;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.caucho.hessian.io.AbstractHessianInput;
+import com.caucho.hessian.io.AbstractHessianOutput;
+import com.caucho.hessian.io.HessianFactory;
+import com.caucho.hessian.io.HessianInputFactory;
+import com.caucho.hessian.io.SerializerFactory;
+import com.caucho.services.server.AbstractSkeleton;
+
+/**
+ * Invokes the methods of a service for the Hessian calls received by an
+ * endpoint. This replaces {@link com.caucho.hessian.server.HessianSkeleton}
+ * with the same protocol behavior, but the dispatch table is computed once:
+ * each method is registered under its name, its name suffixed with the
+ * number of arguments and its mangled name, and is resolved on the class
+ * of the implementation with the access checks suppressed. The calls are
+ * thus direct reflective calls to the implementation, that the JVM turns
+ * into generated accessors for the frequently called methods.
+ *
+ * The concurrent calls to a method with a batch counterpart declared by
+ * {@link BatchedBy} are collected by a {@link BatchLoader}, their replies
+ * are written when the batch method returns.
+ */
+class ServiceDispatcher
+{
+    private static final Logger logger = LoggerFactory.getLogger(ServiceDispatcher.class);
+
+    private final Class<?> serviceAPI;
+    private final Object serviceImpl;
+
+    /** The methods of the service by name, name__argCount and mangled name */
+    private final Map<String, Invoker> invokers = new HashMap<String, Invoker>();
+
+    /** The loaders of the batched methods */
+    private final List<BatchLoader> loaders = new ArrayList<BatchLoader>();
+
+    /** The result of a call whose reply is already written */
+    private static final Object NO_REPLY = new Object();
+
+    private final HessianInputFactory inputFactory = new HessianInputFactory();
+    private final HessianFactory hessianFactory = new HessianFactory();
+
+    /**
+     * @param serviceAPI    the interface of the service
+     * @param serviceImpl   the object implementing the service
+     */
+    ServiceDispatcher(Class<?> serviceAPI, Object serviceImpl)
+    {
+        if (!serviceAPI.isInstance(serviceImpl))
+        {
+            throw new IllegalArgumentException(serviceImpl + " doesn't implement " + serviceAPI.getName());
+        }
+        this.serviceAPI = serviceAPI;
+        this.serviceImpl = serviceImpl;
+
+        for (Method method : serviceAPI.getMethods())
+        {
+            Invoker invoker = new Invoker(resolve(method), createLoader(method));
+            if (invoker.loader != null)
+            {
+                loaders.add(invoker.loader);
+            }
+            if (!invokers.containsKey(method.getName()))
+            {
+                invokers.put(method.getName(), invoker);
+            }
+            invokers.put(method.getName() + "__" + method.getParameterTypes().length, invoker);
+            invokers.put(AbstractSkeleton.mangleName(method, false), invoker);
+        }
+    }
+
+    /**
+     * Returns the method of the implementation class matching the method of
+     * the interface, accessible without access checks if permitted.
+     */
+    private Method resolve(Method method)
+    {
+        Method target = method;
+        try
+        {
+            target = serviceImpl.getClass().getMethod(method.getName(), method.getParameterTypes());
+            target.setAccessible(true);
+        }
+        catch (NoSuchMethodException e)
+        {
+            target = method;
+        }
+        catch (SecurityException e)
+        {
+            // the implementation method may not be public, the interface method is
+            target = method;
+        }
+        return target;
+    }
+
+    /**
+     * Creates the loader batching the calls to the method if it has a batch
+     * counterpart declared by {@link BatchedBy}, on the implementation or
+     * on the interface.
+     *
+     * @return the loader, or null if the method isn't batched
+     */
+    private BatchLoader createLoader(Method method)
+    {
+        BatchedBy batchedBy = resolve(method).getAnnotation(BatchedBy.class);
+        if (batchedBy == null)
+        {
+            batchedBy = method.getAnnotation(BatchedBy.class);
+        }
+        if (batchedBy == null)
+        {
+            return null;
+        }
+        
+        Method batchMethod = null;
+        for (Method candidate : serviceImpl.getClass().getMethods())
+        {
+            if (candidate.getName().equals(batchedBy.value()) && candidate.getParameterTypes().length == 1)
+            {
+                batchMethod = candidate;
+                break;
+            }
+        }
+        if (batchMethod == null)
+        {
+            throw new IllegalArgumentException("No batch method " + batchedBy.value() + " for " + method);
+        }
+        batchMethod.setAccessible(true);
+        
+        return new BatchLoader(serviceImpl, method, batchMethod, batchedBy.delay(), batchedBy.maxSize());
+    }
+
+    /**
+     * Sets the executor of the batches flushed after their delay.
+     */
+    void setExecutor(Executor executor)
+    {
+        for (BatchLoader loader : loaders)
+        {
+            loader.setExecutor(executor);
+        }
+    }
+
+    /**
+     * Executes the pending batches and stops their schedulers.
+     */
+    void destroy()
+    {
+        for (BatchLoader loader : loaders)
+        {
+            loader.destroy();
+        }
+    }
+
+    /**
+     * Returns the interface of the service.
+     */
+    Class<?> getServiceAPI()
+    {
+        return serviceAPI;
+    }
+
+    /**
+     * Reads a call, invokes the service and writes the reply.
+     *
+     * The methods of the service returning a {@link HessianFuture} are
+     * asynchronous: the reply is written when the future completes, possibly
+     * by another thread. The other methods, including the ones returning a
+     * plain {@link Future} that is waited for, write the reply before the
+     * returned future completes.
+     *
+     * @param is                the call
+     * @param os                the stream receiving the reply
+     * @param serializerFactory the serializer factory, or null
+     * @return the future completed when the reply is written
+     * @throws Exception if the call can't be read
+     */
+    HessianFuture<Void> invoke(InputStream is, OutputStream os, SerializerFactory serializerFactory) throws Exception
+    {
+        AbstractHessianInput in;
+        final AbstractHessianOutput out;
+
+        HessianInputFactory.HeaderType header = inputFactory.readHeader(is);
+        switch (header)
+        {
+            case CALL_1_REPLY_1:
+                in = hessianFactory.createHessianInput(is);
+                out = hessianFactory.createHessianOutput(os);
+                break;
+
+            case CALL_1_REPLY_2:
+                in = hessianFactory.createHessianInput(is);
+                out = hessianFactory.createHessian2Output(os);
+                break;
+
+            case HESSIAN_2:
+                in = hessianFactory.createHessian2Input(is);
+                in.readCall();
+                out = hessianFactory.createHessian2Output(os);
+                break;
+
+            default:
+                throw new IllegalStateException(header + " is an unknown Hessian call");
+        }
+
+        if (serializerFactory != null)
+        {
+            in.setSerializerFactory(serializerFactory);
+            out.setSerializerFactory(serializerFactory);
+        }
+
+        Object result;
+        try
+        {
+            result = invoke(in, out);
+        }
+        catch (Exception e)
+        {
+            out.close();
+            throw e;
+        }
+        finally
+        {
+            in.close();
+        }
+
+        final HessianFuture<Void> written = new HessianFuture<Void>();
+        if (result instanceof HessianFuture)
+        {
+            ((HessianFuture<?>) result).addCallback(new HessianCallback<Object>()
+            {
+                public void onSuccess(Object value)
+                {
+                    writeReply(out, value, null, written);
+                }
+
+                public void onFailure(Throwable cause)
+                {
+                    writeReply(out, null, cause, written);
+                }
+            });
+        }
+        else if (result instanceof Future)
+        {
+            try
+            {
+                writeReply(out, ((Future<?>) result).get(), null, written);
+            }
+            catch (ExecutionException e)
+            {
+                writeReply(out, null, e.getCause(), written);
+            }
+        }
+        else
+        {
+            writeReply(out, result, null, written);
+        }
+
+        return written;
+    }
+
+    /**
+     * Reads the call and invokes the service.
+     *
+     * @return the result of the method, or NO_REPLY if the reply was written
+     */
+    private Object invoke(AbstractHessianInput in, AbstractHessianOutput out) throws Exception
+    {
+        in.skipOptionalCall();
+
+        // the headers are not used by the endpoints
+        while (in.readHeader() != null)
+        {
+            in.readObject();
+        }
+
+        String methodName = in.readMethod();
+        int argLength = in.readMethodArgLength();
+
+        Invoker invoker = invokers.get(methodName + "__" + argLength);
+        if (invoker == null)
+        {
+            invoker = invokers.get(methodName);
+        }
+
+        if (invoker == null)
+        {
+            if ("_hessian_getAttribute".equals(methodName))
+            {
+                String attrName = in.readString();
+                in.completeCall();
+
+                String value = null;
+                if ("java.api.class".equals(attrName) || "java.home.class".equals(attrName) 
+                        || "java.object.class".equals(attrName))
+                {
+                    value = serviceAPI.getName();
+                }
+
+                return value;
+            }
+
+            out.writeFault("NoSuchMethodException", "The service has no method named: " + in.getMethod(), null);
+            return NO_REPLY;
+        }
+
+        Class<?>[] paramTypes = invoker.paramTypes;
+        if (argLength != paramTypes.length && argLength >= 0)
+        {
+            out.writeFault("NoSuchMethod", "method " + invoker.method + " argument length mismatch, received length=" + argLength, null);
+            return NO_REPLY;
+        }
+
+        Object[] values = new Object[paramTypes.length];
+        for (int i = 0; i < paramTypes.length; i++)
+        {
+            values[i] = in.readObject(paramTypes[i]);
+        }
+
+        Object result;
+        try
+        {
+            if (invoker.loader != null)
+            {
+                // the reply is written when the batch is executed
+                result = invoker.loader.load(values[0]);
+            }
+            else
+            {
+                result = invoker.method.invoke(serviceImpl, values);
+            }
+        }
+        catch (Exception e)
+        {
+            Throwable cause = e;
+            if (cause instanceof InvocationTargetException)
+            {
+                cause = ((InvocationTargetException) e).getTargetException();
+            }
+
+            logger.debug(this + " " + cause.toString(), cause);
+
+            out.writeFault("ServiceException", cause.getMessage(), cause);
+            return NO_REPLY;
+        }
+
+        in.completeCall();
+
+        return result;
+    }
+
+    /**
+     * Writes the reply or the fault, closes the output and completes the
+     * future tracking the reply.
+     */
+    private void writeReply(AbstractHessianOutput out, Object value, Throwable cause, HessianFuture<Void> written)
+    {
+        try
+        {
+            if (cause != null)
+            {
+                logger.debug(this + " " + cause.toString(), cause);
+                out.writeFault("ServiceException", cause.getMessage(), cause);
+            }
+            else if (value != NO_REPLY)
+            {
+                out.writeReply(value);
+            }
+            out.close();
+            written.set(null);
+        }
+        catch (Exception e)
+        {
+            written.setException(e);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return getClass().getSimpleName() + "[" + serviceAPI.getName() + "]";
+    }
+
+    /**
+     * A method of the service with its parameter types, and the loader
+     * batching its calls if it has a batch counterpart.
+     */
+    private static final class Invoker
+    {
+        final Method method;
+        final Class<?>[] paramTypes;
+        final BatchLoader loader;
+
+        Invoker(Method method, BatchLoader loader)
+        {
+            this.method = method;
+            this.paramTypes = method.getParameterTypes();
+            this.loader = loader;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright 2013 resthub.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.resthub.rpc;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Selects the shard of the request queue receiving a request.
+ *
+ * A sharded service has several request queues bound to its exchange,
+ * each shard being named and routed by the name of the queue followed by
+ * the number of the shard. RabbitMQ runs each queue in a single process,
+ * sharding the queue spreads the load of a busy service over several
+ * cores and broker nodes.
+ */
+class ShardRouter implements RequestRouter
+{
+    private final String[] routingKeys;
+
+    /** The next shard of the requests without key */
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * @param routingKey    the routing key of the unsharded queue
+     * @param shards        the number of shards
+     */
+    ShardRouter(String routingKey, int shards)
+    {
+        this.routingKeys = getShardNames(routingKey, shards);
+    }
+
+    /**
+     * Returns the names of the shards of a queue.
+     *
+     * @param queueName the name of the unsharded queue
+     * @param shards    the number of shards, the queue isn't sharded if lower than 2
+     */
+    static String[] getShardNames(String queueName, int shards)
+    {
+        if (shards < 2)
+        {
+            return new String[] { queueName };
+        }
+        
+        String[] names = new String[shards];
+        for (int i = 0; i < shards; i++)
+        {
+            names[i] = queueName + "." + i;
+        }
+        
+        return names;
+    }
+
+    /**
+     * Returns the shard of the specified key.
+     *
+     * @param key       the key of the request, may be null
+     * @param shards    the number of shards
+     */
+    static int getShard(Object key, int shards)
+    {
+        int hash;
+        if (key == null)
+        {
+            hash = 0;
+        }
+        else if (key instanceof Enum)
+        {
+            // the hash code of an enum differs between JVMs
+            hash = ((Enum<?>) key).name().hashCode();
+        }
+        else
+        {
+            hash = key.hashCode();
+        }
+        
+        // spread the keys with a regular hash code, like multiples of the number of shards
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        
+        return (hash & Integer.MAX_VALUE) % shards;
+    }
+
+    public String getRoutingKey(Object[] args, int keyIndex)
+    {
+        int shard;
+        if (keyIndex >= 0)
+        {
+            shard = getShard(args[keyIndex], routingKeys.length);
+        }
+        else
+        {
+            shard = (next.getAndIncrement() & Integer.MAX_VALUE) % routingKeys.length;
+        }
+        
+        return routingKeys[shard];
+    }
+}
@@ -0,0 +1,48 @@
+/**
+ * Copyright 2013 resthub.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.resthub.rpc.compression;
+
+import java.io.IOException;
+
+/**
+ * Compression algorithm applied to the body of the messages. A codec is
+ * identified by the content encoding of the messages it compresses.
+ * Implementations must be thread safe.
+ */
+public interface CompressionCodec
+{
+    /**
+     * Returns the content encoding of the messages compressed by this codec.
+     */
+    String getEncoding();
+
+    /**
+     * Compresses the data.
+     */
+    byte[] compress(byte[] data) throws IOException;
+
+    /**
+     * Decompresses the data.
+     *
+     * @throws IOException if the data can't be decompressed
+     */
+    byte[] decompress(byte[] data) throws IOException;
+
+    /**
+     * Releases the resources held by the codec.
+     */
+    void destroy();
+}
@@ -0,0 +1,213 @@
+/**
+ * Copyright 2013 resthub.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.resthub.rpc.compression;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+
+import org.springframework.util.ClassUtils;
+
+/**
+ * The compression codecs known by a proxy factory or an endpoint, by
+ * content encoding. The deflate codec is always available, the LZ4 codec
+ * is available if the lz4 library is on the classpath.
+ *
+ * Deflate can also use preset dictionaries, identified by the dictionary
+ * id sent with the messages. The dictionaries are ignored by the other
+ * encodings.
+ */
+public class CompressionCodecs
+{
+    private final Map<String, CompressionCodec> codecs = new ConcurrentHashMap<String, CompressionCodec>();
+
+    /** The deflate codecs using a preset dictionary, by dictionary id */
+    private final Map<String, CompressionCodec> dictionaryCodecs = new ConcurrentHashMap<String, CompressionCodec>();
+
+    /** The encodings in order of registration */
+    private final List<String> encodings = new ArrayList<String>();
+
+    /**
+     * Creates the registry with the default codecs.
+     */
+    public CompressionCodecs()
+    {
+        register(new DeflateCodec());
+        if (ClassUtils.isPresent("net.jpountz.lz4.LZ4Factory", CompressionCodecs.class.getClassLoader()))
+        {
+            register(new LZ4Codec());
+        }
+    }
+
+    /**
+     * Registers a codec, replacing the codec with the same encoding.
+     */
+    public synchronized void register(CompressionCodec codec)
+    {
+        CompressionCodec previous = codecs.put(codec.getEncoding(), codec);
+        if (previous != null && previous != codec)
+        {
+            previous.destroy();
+        }
+        if (!encodings.contains(codec.getEncoding()))
+        {
+            encodings.add(codec.getEncoding());
+        }
+    }
+
+    /**
+     * Registers the codecs, replacing the codecs with the same encodings.
+     */
+    public void register(Collection<? extends CompressionCodec> codecs)
+    {
+        for (CompressionCodec codec : codecs)
+        {
+            register(codec);
+        }
+    }
+
+    /**
+     * Registers a deflate preset dictionary, replacing the dictionary with
+     * the same id.
+     */
+    public void register(CompressionDictionary dictionary)
+    {
+        ZlibPool pool = new ZlibPool(Deflater.DEFAULT_COMPRESSION, ZlibPool.DEFAULT_MAX_IDLE, dictionary.getData());
+        CompressionCodec previous = dictionaryCodecs.put(dictionary.getId(), new DeflateCodec(pool));
+        if (previous != null)
+        {
+            previous.destroy();
+        }
+    }
+
+    /**
+     * Tells if the dictionary with the specified id is registered.
+     */
+    public boolean hasDictionary(String dictionaryId)
+    {
+        return dictionaryId != null && dictionaryCodecs.containsKey(dictionaryId);
+    }
+
+    /**
+     * Returns the codec for the specified content encoding, or null if the
+     * encoding is unknown.
+     */
+    public CompressionCodec get(String encoding)
+    {
+        return encoding != null ? codecs.get(encoding) : null;
+    }
+
+    /**
+     * Returns the codec for the specified content encoding and dictionary,
+     * or null if the encoding or the deflate dictionary is unknown.
+     *
+     * @param encoding      the content encoding
+     * @param dictionaryId  the id of the dictionary, or null
+     */
+    public CompressionCodec get(String encoding, String dictionaryId)
+    {
+        if (dictionaryId != null && DeflateCodec.ENCODING.equals(encoding))
+        {
+            return dictionaryCodecs.get(dictionaryId);
+        }
+        return get(encoding);
+    }
+
+    /**
+     * Returns the codec for the specified content encoding and dictionary.
+     *
+     * @throws IOException if the encoding or the deflate dictionary is unknown
+     */
+    public CompressionCodec getRequired(String encoding, String dictionaryId) throws IOException
+    {
+        CompressionCodec codec = get(encoding, dictionaryId);
+        if (codec == null && dictionaryId != null && get(encoding) != null)
+        {
+            throw new IOException("Unknown compression dictionary: " + dictionaryId);
+        }
+        return codec != null ? codec : getRequired(encoding);
+    }
+
+    /**
+     * Returns the codec for the specified content encoding.
+     *
+     * @throws IOException if the encoding is unknown
+     */
+    public CompressionCodec getRequired(String encoding) throws IOException
+    {
+        CompressionCodec codec = get(encoding);
+        if (codec == null)
+        {
+            throw new IOException("Unsupported content encoding: " + encoding);
+        }
+        return codec;
+    }
+
+    /**
+     * Returns the encodings of the codecs, the specified encoding first.
+     * The result is meant to be sent in the accept encoding header.
+     *
+     * @param preferred the preferred encoding
+     */
+    public synchronized String getAcceptEncoding(String preferred)
+    {
+        StringBuilder accept = new StringBuilder(preferred);
+        for (String encoding : encodings)
+        {
+            if (!encoding.equals(preferred))
+            {
+                accept.append(',').append(encoding);
+            }
+        }
+        return accept.toString();
+    }
+
+    /**
+     * Returns the first encoding of the accept encoding header known by this
+     * registry, or null if none is supported.
+     */
+    public String negotiate(String acceptEncoding)
+    {
+        for (String encoding : acceptEncoding.split(","))
+        {
+            encoding = encoding.trim();
+            if (codecs.containsKey(encoding))
+            {
+                return encoding;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Releases the resources held by the codecs.
+     */
+    public void destroy()
+    {
+        for (CompressionCodec codec : codecs.values())
+        {
+            codec.destroy();
+        }
+        for (CompressionCodec codec : dictionaryCodecs.values())
+        {
+            codec.destroy();
+        }
+    }
+}
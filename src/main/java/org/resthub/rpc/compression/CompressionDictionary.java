@@ -0,0 +1,80 @@
+/**
+ * Copyright 2013 resthub.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.resthub.rpc.compression;
+
+import java.io.IOException;
+
+import org.springframework.core.io.Resource;
+import org.springframework.util.FileCopyUtils;
+
+/**
+ * Preset dictionary of the deflate codec. The Hessian messages are small
+ * and repeat the same class, field and method names, a dictionary
+ * containing these strings improves their compression significantly.
+ *
+ * The id is sent with the messages to let the receiver pick the same
+ * dictionary, it must change whenever the content changes. Dictionaries
+ * can be built with {@link DictionaryBuilder}.
+ */
+public class CompressionDictionary
+{
+    /** The maximum useful size, deflate only looks back 32KB */
+    public static final int MAX_SIZE = 32 * 1024;
+
+    private final String id;
+    private final byte[] data;
+
+    /**
+     * @param id    the id of the dictionary
+     * @param data  the content of the dictionary, only the last 32KB are used
+     */
+    public CompressionDictionary(String id, byte[] data)
+    {
+        if (id == null || id.length() == 0)
+        {
+            throw new IllegalArgumentException("The id of the dictionary is required");
+        }
+        this.id = id;
+        this.data = data;
+    }
+
+    /**
+     * Loads the dictionary from a resource.
+     *
+     * @param id        the id of the dictionary
+     * @param resource  the file containing the dictionary
+     */
+    public CompressionDictionary(String id, Resource resource) throws IOException
+    {
+        this(id, FileCopyUtils.copyToByteArray(resource.getInputStream()));
+    }
+
+    /**
+     * Returns the id of the dictionary.
+     */
+    public String getId()
+    {
+        return id;
+    }
+
+    /**
+     * Returns the content of the dictionary.
+     */
+    public byte[] getData()
+    {
+        return data;
+    }
+}
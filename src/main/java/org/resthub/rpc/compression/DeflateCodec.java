@@ -0,0 +1,62 @@
+/**
+ * Copyright 2013 resthub.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.resthub.rpc.compression;
+
+import java.io.IOException;
+
+/**
+ * Raw deflate codec (content encoding "deflate"). The deflaters and the
+ * inflaters are pooled.
+ */
+public class DeflateCodec implements CompressionCodec
+{
+    public static final String ENCODING = "deflate";
+
+    private final ZlibPool pool;
+
+    public DeflateCodec()
+    {
+        this(new ZlibPool());
+    }
+
+    public DeflateCodec(ZlibPool pool)
+    {
+        this.pool = pool;
+    }
+
+    public String getEncoding()
+    {
+        return ENCODING;
+    }
+
+    public byte[] compress(byte[] data)
+    {
+        return pool.compress(data);
+    }
+
+    public byte[] decompress(byte[] data) throws IOException
+    {
+        return pool.decompress(data);
+    }
+
+    /**
+     * Releases the native memory of the pooled deflaters and inflaters.
+     */
+    public void destroy()
+    {
+        pool.destroy();
+    }
+}
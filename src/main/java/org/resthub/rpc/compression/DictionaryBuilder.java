@@ -0,0 +1,294 @@
+/**
+ * Copyright 2013 resthub.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.resthub.rpc.compression;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+import org.springframework.util.FileCopyUtils;
+
+/**
+ * Builds a deflate preset dictionary from a sample of message bodies.
+ *
+ * The samples are cut into segments, and the segments sharing the most
+ * byte sequences with the other samples are selected until the
+ * dictionary is full. The best segments are placed at the end of the
+ * dictionary, where deflate encodes the references to them with the
+ * fewest bits.
+ *
+ * The samples are uncompressed Hessian bodies, captured for example with
+ * the RabbitMQ firehose or by logging the requests and the replies. The
+ * tool can be run from the command line:
+ *
+ * <pre>
+ * java org.resthub.rpc.compression.DictionaryBuilder [-size bytes] dictionary samples...
+ * </pre>
+ *
+ * where samples are files containing one body each, or directories of
+ * such files.
+ */
+public class DictionaryBuilder
+{
+    /** The length of the byte sequences counted */
+    private static final int SEQUENCE_LENGTH = 6;
+
+    /** The length of the segments copied into the dictionary */
+    private static final int SEGMENT_LENGTH = 48;
+
+    private final List<byte[]> samples = new ArrayList<byte[]>();
+
+    /**
+     * Adds a message body to the sample.
+     */
+    public void addSample(byte[] sample)
+    {
+        samples.add(sample);
+    }
+
+    /**
+     * Adds the content of a file to the sample, or the content of all the
+     * files if the file is a directory.
+     */
+    public void addSamples(File file) throws IOException
+    {
+        if (file.isDirectory())
+        {
+            File[] files = file.listFiles();
+            Arrays.sort(files);
+            for (File child : files)
+            {
+                addSamples(child);
+            }
+        }
+        else
+        {
+            addSample(FileCopyUtils.copyToByteArray(file));
+        }
+    }
+
+    /**
+     * Returns the message bodies in the sample.
+     */
+    public List<byte[]> getSamples()
+    {
+        return samples;
+    }
+
+    /**
+     * Builds the dictionary.
+     *
+     * @param size the maximum size of the dictionary
+     */
+    public byte[] build(int size)
+    {
+        // the number of samples containing each sequence
+        Map<String, Integer> frequencies = new HashMap<String, Integer>();
+        for (byte[] sample : samples)
+        {
+            for (String sequence : getSequences(sample, 0, sample.length))
+            {
+                Integer frequency = frequencies.get(sequence);
+                frequencies.put(sequence, frequency == null ? 1 : frequency + 1);
+            }
+        }
+
+        PriorityQueue<Segment> candidates = new PriorityQueue<Segment>();
+        Set<String> covered = new HashSet<String>();
+        for (byte[] sample : samples)
+        {
+            for (int offset = 0; offset + SEQUENCE_LENGTH <= sample.length; offset += SEGMENT_LENGTH / 2)
+            {
+                Segment segment = new Segment(sample, offset, Math.min(SEGMENT_LENGTH, sample.length - offset));
+                segment.score(frequencies, covered);
+                if (segment.score > 0)
+                {
+                    candidates.add(segment);
+                }
+            }
+        }
+
+        // lazy greedy selection, the score of a segment only decreases as
+        // the sequences it contains are covered by the selected segments
+        List<Segment> selected = new ArrayList<Segment>();
+        int length = 0;
+        while (length < size && !candidates.isEmpty())
+        {
+            Segment segment = candidates.poll();
+            int score = segment.score;
+            segment.score(frequencies, covered);
+            if (segment.score < score)
+            {
+                if (segment.score > 0)
+                {
+                    candidates.add(segment);
+                }
+                continue;
+            }
+
+            covered.addAll(getSequences(segment.sample, segment.offset, segment.length));
+            selected.add(segment);
+            length += segment.length;
+        }
+
+        // the best segments last, the first ones are truncated if the dictionary is too large
+        Collections.reverse(selected);
+        byte[] dictionary = new byte[Math.min(length, size)];
+        int position = dictionary.length - length;
+        for (Segment segment : selected)
+        {
+            int skip = Math.max(0, -position);
+            if (skip < segment.length)
+            {
+                System.arraycopy(segment.sample, segment.offset + skip, dictionary, position + skip, segment.length - skip);
+            }
+            position += segment.length;
+        }
+
+        return dictionary;
+    }
+
+    /**
+     * Returns the distinct sequences of a part of a sample.
+     */
+    private static Set<String> getSequences(byte[] sample, int offset, int length)
+    {
+        Set<String> sequences = new HashSet<String>();
+        for (int i = offset; i + SEQUENCE_LENGTH <= offset + length; i++)
+        {
+            sequences.add(toString(sample, i, SEQUENCE_LENGTH));
+        }
+        return sequences;
+    }
+
+    private static String toString(byte[] data, int offset, int length)
+    {
+        try
+        {
+            return new String(data, offset, length, "ISO-8859-1");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A part of a sample that may be copied into the dictionary.
+     */
+    private static class Segment implements Comparable<Segment>
+    {
+        final byte[] sample;
+        final int offset;
+        final int length;
+        int score;
+
+        Segment(byte[] sample, int offset, int length)
+        {
+            this.sample = sample;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * Computes the score of the segment, the sum of the frequencies of
+         * the repeated sequences that aren't covered yet.
+         */
+        void score(Map<String, Integer> frequencies, Set<String> covered)
+        {
+            score = 0;
+            for (String sequence : getSequences(sample, offset, length))
+            {
+                int frequency = frequencies.get(sequence);
+                if (frequency > 1 && !covered.contains(sequence))
+                {
+                    score += frequency;
+                }
+            }
+        }
+
+        public int compareTo(Segment other)
+        {
+            return other.score - score;
+        }
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        int size = CompressionDictionary.MAX_SIZE;
+        int index = 0;
+        if (args.length > 1 && args[0].equals("-size"))
+        {
+            size = Integer.parseInt(args[1]);
+            index = 2;
+        }
+
+        if (args.length - index < 2)
+        {
+            System.err.println("Usage: java " + DictionaryBuilder.class.getName() + " [-size bytes] dictionary samples...");
+            System.exit(1);
+        }
+
+        DictionaryBuilder builder = new DictionaryBuilder();
+        for (int i = index + 1; i < args.length; i++)
+        {
+            builder.addSamples(new File(args[i]));
+        }
+
+        byte[] dictionary = builder.build(size);
+        OutputStream out = new FileOutputStream(args[index]);
+        try
+        {
+            out.write(dictionary);
+        }
+        finally
+        {
+            out.close();
+        }
+
+        // compare the compressed size of the samples with and without the dictionary
+        ZlibPool plain = new ZlibPool();
+        ZlibPool preset = new ZlibPool(Deflater.DEFAULT_COMPRESSION, 1, dictionary);
+        long original = 0;
+        long compressed = 0;
+        long compressedWithDictionary = 0;
+        for (byte[] sample : builder.getSamples())
+        {
+            original += sample.length;
+            compressed += plain.compress(sample).length;
+            compressedWithDictionary += preset.compress(sample).length;
+        }
+        plain.destroy();
+        preset.destroy();
+
+        System.out.println(builder.getSamples().size() + " samples, " + original + " bytes");
+        System.out.println("Dictionary: " + dictionary.length + " bytes written to " + args[index]);
+        System.out.println("Compressed without dictionary: " + compressed + " bytes");
+        System.out.println("Compressed with dictionary: " + compressedWithDictionary + " bytes");
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright 2013 resthub.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.resthub.rpc.compression;
+
+import java.io.IOException;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+
+/**
+ * LZ4 codec (content encoding "lz4"). LZ4 compresses less than deflate
+ * but is an order of magnitude faster, it's suited to the latency
+ * sensitive services where the cost of deflate dominates.
+ *
+ * The body is a 4 bytes big endian length of the uncompressed data
+ * followed by a LZ4 block. This codec requires the lz4 library
+ * (net.jpountz.lz4:lz4) on the classpath.
+ */
+public class LZ4Codec implements CompressionCodec
+{
+    public static final String ENCODING = "lz4";
+
+    /** The maximum size of the uncompressed data accepted */
+    private static final int MAX_LENGTH = 64 * 1024 * 1024;
+
+    private final LZ4Compressor compressor;
+    private final LZ4SafeDecompressor decompressor;
+
+    public LZ4Codec()
+    {
+        LZ4Factory factory = LZ4Factory.fastestInstance();
+        compressor = factory.fastCompressor();
+        decompressor = factory.safeDecompressor();
+    }
+
+    public String getEncoding()
+    {
+        return ENCODING;
+    }
+
+    public byte[] compress(byte[] data)
+    {
+        byte[] buffer = new byte[4 + compressor.maxCompressedLength(data.length)];
+        buffer[0] = (byte) (data.length >>> 24);
+        buffer[1] = (byte) (data.length >>> 16);
+        buffer[2] = (byte) (data.length >>> 8);
+        buffer[3] = (byte) data.length;
+
+        int length = compressor.compress(data, 0, data.length, buffer, 4, buffer.length - 4);
+
+        byte[] compressed = new byte[4 + length];
+        System.arraycopy(buffer, 0, compressed, 0, compressed.length);
+        return compressed;
+    }
+
+    public byte[] decompress(byte[] data) throws IOException
+    {
+        if (data.length < 4)
+        {
+            throw new IOException("Truncated LZ4 block");
+        }
+
+        int length = ((data[0] & 0xFF) << 24) | ((data[1] & 0xFF) << 16) | ((data[2] & 0xFF) << 8) | (data[3] & 0xFF);
+        if (length < 0 || length > MAX_LENGTH)
+        {
+            throw new IOException("Invalid LZ4 block length: " + length);
+        }
+
+        byte[] decompressed = new byte[length];
+        try
+        {
+            int decompressedLength = decompressor.decompress(data, 4, data.length - 4, decompressed, 0, length);
+            if (decompressedLength != length)
+            {
+                throw new IOException("Invalid LZ4 block, " + decompressedLength + " bytes decompressed instead of " + length);
+            }
+        }
+        catch (LZ4Exception e)
+        {
+            throw new IOException("Invalid LZ4 block: " + e.getMessage());
+        }
+
+        return decompressed;
+    }
+
+    public void destroy()
+    {
+    }
+}
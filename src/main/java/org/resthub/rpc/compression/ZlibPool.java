@@ -0,0 +1,243 @@
+/**
+ * Copyright 2013 resthub.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.resthub.rpc.compression;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Bounded pool of raw (nowrap) deflaters and inflaters.
+ *
+ * Deflater and Inflater hold native zlib memory that is only freed by
+ * end() or by finalization. The pool reuses them between messages and
+ * ends the instances that don't fit in the pool, and all the idle ones
+ * when the pool is destroyed.
+ *
+ * A pool can be created with a preset dictionary, it's set on the
+ * instances every time they are acquired.
+ */
+public class ZlibPool
+{
+    /** The default maximum number of idle instances of each kind */
+    public static final int DEFAULT_MAX_IDLE = 16;
+
+    private final BlockingQueue<Deflater> deflaters;
+    private final BlockingQueue<Inflater> inflaters;
+    private final int level;
+    private final byte[] dictionary;
+
+    private volatile boolean destroyed;
+
+    /**
+     * Creates a pool using the default compression level.
+     */
+    public ZlibPool()
+    {
+        this(Deflater.DEFAULT_COMPRESSION, DEFAULT_MAX_IDLE);
+    }
+
+    /**
+     * Creates a pool.
+     *
+     * @param level     the compression level of the deflaters
+     * @param maxIdle   the maximum number of idle instances of each kind kept in the pool
+     */
+    public ZlibPool(int level, int maxIdle)
+    {
+        this(level, maxIdle, null);
+    }
+
+    /**
+     * Creates a pool using a preset dictionary.
+     *
+     * @param level         the compression level of the deflaters
+     * @param maxIdle       the maximum number of idle instances of each kind kept in the pool
+     * @param dictionary    the preset dictionary, or null
+     */
+    public ZlibPool(int level, int maxIdle, byte[] dictionary)
+    {
+        this.level = level;
+        this.dictionary = dictionary;
+        this.deflaters = new ArrayBlockingQueue<Deflater>(maxIdle);
+        this.inflaters = new ArrayBlockingQueue<Inflater>(maxIdle);
+    }
+
+    /**
+     * Returns a deflater from the pool, or a new one if the pool is empty.
+     */
+    public Deflater acquireDeflater()
+    {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null)
+        {
+            deflater = new Deflater(level, true);
+        }
+        if (dictionary != null)
+        {
+            deflater.setDictionary(dictionary);
+        }
+        return deflater;
+    }
+
+    /**
+     * Returns a deflater to the pool. The deflater is reset, or ended if
+     * the pool is full or destroyed.
+     */
+    public void releaseDeflater(Deflater deflater)
+    {
+        deflater.reset();
+        if (destroyed || !deflaters.offer(deflater))
+        {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Returns an inflater from the pool, or a new one if the pool is empty.
+     */
+    public Inflater acquireInflater()
+    {
+        Inflater inflater = inflaters.poll();
+        if (inflater == null)
+        {
+            inflater = new Inflater(true);
+        }
+        if (dictionary != null)
+        {
+            // raw inflaters never ask for the dictionary, it's set upfront
+            inflater.setDictionary(dictionary);
+        }
+        return inflater;
+    }
+
+    /**
+     * Returns an inflater to the pool. The inflater is reset, or ended if
+     * the pool is full or destroyed.
+     */
+    public void releaseInflater(Inflater inflater)
+    {
+        inflater.reset();
+        if (destroyed || !inflaters.offer(inflater))
+        {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Compresses the data with a pooled deflater.
+     *
+     * @param data the data to compress
+     * @return the raw deflate stream
+     */
+    public byte[] compress(byte[] data)
+    {
+        Deflater deflater = acquireDeflater();
+        try
+        {
+            deflater.setInput(data);
+            deflater.finish();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 16);
+            byte[] buffer = new byte[Math.min(Math.max(data.length, 64), 8192)];
+            while (!deflater.finished())
+            {
+                int length = deflater.deflate(buffer);
+                out.write(buffer, 0, length);
+            }
+
+            return out.toByteArray();
+        }
+        finally
+        {
+            releaseDeflater(deflater);
+        }
+    }
+
+    /**
+     * Decompresses the data with a pooled inflater.
+     *
+     * @param data the raw deflate stream
+     * @return the decompressed data
+     * @throws IOException if the data isn't a valid deflate stream
+     */
+    public byte[] decompress(byte[] data) throws IOException
+    {
+        Inflater inflater = acquireInflater();
+        try
+        {
+            inflater.setInput(data);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 3);
+            byte[] buffer = new byte[Math.min(Math.max(data.length * 2, 64), 8192)];
+            boolean padded = false;
+            while (!inflater.finished())
+            {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && inflater.needsInput())
+                {
+                    if (padded)
+                    {
+                        throw new IOException("Truncated deflate stream");
+                    }
+                    // zlib may require an extra dummy byte in nowrap mode
+                    inflater.setInput(new byte[1]);
+                    padded = true;
+                }
+                else if (length == 0 && inflater.needsDictionary())
+                {
+                    throw new IOException("Missing deflate dictionary");
+                }
+                out.write(buffer, 0, length);
+            }
+
+            return out.toByteArray();
+        }
+        catch (DataFormatException e)
+        {
+            throw new IOException("Invalid deflate stream: " + e.getMessage());
+        }
+        finally
+        {
+            releaseInflater(inflater);
+        }
+    }
+
+    /**
+     * Releases the native memory of the idle instances. The instances
+     * released after the destruction of the pool are ended immediately.
+     */
+    public void destroy()
+    {
+        destroyed = true;
+
+        Deflater deflater;
+        while ((deflater = deflaters.poll()) != null)
+        {
+            deflater.end();
+        }
+
+        Inflater inflater;
+        while ((inflater = inflaters.poll()) != null)
+        {
+            inflater.end();
+        }
+    }
+}
@@ -21,10 +21,18 @@ import static org.testng.AssertJUnit.assertTrue;
 import static org.testng.AssertJUnit.fail;
 
 import java.lang.reflect.UndeclaredThrowableException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.resthub.rpc.service.EchoService;
 import org.resthub.rpc.service.EchoServiceEndpoint;
+import org.resthub.rpc.service.EchoServiceImpl;
 import org.resthub.rpc.service.FailingService;
 import org.resthub.rpc.service.FailingServiceEndpoint;
 import org.springframework.amqp.rabbit.connection.CachingConnectionFactory;
@@ -72,6 +80,365 @@ public class AMQPHessianProxyTest
         endpoint.destroy();
     }
 
+    @Test
+    public void testDirectReplyTo() throws Exception
+    {
+        EchoServiceEndpoint endpoint = new EchoServiceEndpoint();
+        endpoint.setConnectionFactory(connectionFactory);
+        endpoint.run();
+        
+        AMQPHessianProxyFactory factory = new AMQPHessianProxyFactory();
+        factory.setReadTimeout(5000);
+        factory.setDirectReplyTo(true);
+        factory.setConnectionFactory(connectionFactory);
+        EchoService service = factory.create(EchoService.class);
+        String message = "Hello Hessian!";
+        
+        try
+        {
+            assertEquals(message, service.echo(message));
+            assertEquals(message, service.echo(message));
+        }
+        finally {
+            factory.destroy();
+            endpoint.destroy();
+        }
+    }
+
+    @Test
+    public void testShardedQueue() throws Exception
+    {
+        EchoServiceEndpoint endpoint = new EchoServiceEndpoint();
+        endpoint.setConnectionFactory(connectionFactory);
+        endpoint.setQueuePrefix("sharded");
+        endpoint.setShards(4);
+        endpoint.run();
+        
+        AMQPHessianProxyFactory factory = new AMQPHessianProxyFactory();
+        factory.setReadTimeout(5000);
+        factory.setConnectionFactory(connectionFactory);
+        factory.setQueuePrefix("sharded");
+        factory.setShards(4);
+        EchoService service = factory.create(EchoService.class);
+        
+        try
+        {
+            // routed by the message
+            for (int i = 0; i < 20; i++)
+            {
+                assertEquals("Hello Hessian " + i, service.echo("Hello Hessian " + i));
+            }
+            
+            // routed in turn
+            for (int i = 0; i < 8; i++)
+            {
+                service.doNothing();
+            }
+        }
+        finally {
+            factory.destroy();
+            endpoint.destroy();
+        }
+    }
+
+    /**
+     * Echo service counting its calls.
+     */
+    private static class CountingEchoService extends EchoServiceImpl
+    {
+        private final AtomicInteger calls = new AtomicInteger();
+        
+        @Override
+        public String echo(String message)
+        {
+            calls.incrementAndGet();
+            return message;
+        }
+    }
+
+    @Test
+    public void testAffinity() throws Exception
+    {
+        CountingEchoService first = new CountingEchoService();
+        CountingEchoService second = new CountingEchoService();
+        HessianEndpoint firstEndpoint = new HessianEndpoint(EchoService.class, first);
+        HessianEndpoint secondEndpoint = new HessianEndpoint(EchoService.class, second);
+        for (HessianEndpoint endpoint : new HessianEndpoint[] { firstEndpoint, secondEndpoint })
+        {
+            endpoint.setConnectionFactory(connectionFactory);
+            endpoint.setQueuePrefix("affinity");
+            endpoint.setAffinity(true);
+            endpoint.run();
+        }
+        
+        AMQPHessianProxyFactory factory = new AMQPHessianProxyFactory();
+        factory.setReadTimeout(5000);
+        factory.setConnectionFactory(connectionFactory);
+        factory.setQueuePrefix("affinity");
+        factory.setAffinity(true);
+        EchoService service = factory.create(EchoService.class);
+        
+        try
+        {
+            // the same key is served by the same instance
+            for (int i = 0; i < 10; i++)
+            {
+                assertEquals("Hello Hessian!", service.echo("Hello Hessian!"));
+            }
+            assertEquals(10, Math.max(first.calls.get(), second.calls.get()));
+            assertEquals(10, first.calls.get() + second.calls.get());
+            
+            // the keys move to the remaining instance
+            secondEndpoint.destroy();
+            assertEquals("Hello Hessian!", service.echo("Hello Hessian!"));
+        }
+        finally {
+            factory.destroy();
+            firstEndpoint.destroy();
+            secondEndpoint.destroy();
+        }
+    }
+
+    @Test
+    public void testAsyncEcho() throws Exception
+    {
+        EchoServiceEndpoint endpoint = new EchoServiceEndpoint();
+        endpoint.setConnectionFactory(connectionFactory);
+        endpoint.run();
+        
+        AMQPHessianProxyFactory factory = new AMQPHessianProxyFactory();
+        factory.setReadTimeout(5000);
+        factory.setConnectionFactory(connectionFactory);
+        org.resthub.rpc.service.async.EchoService service = factory.create(org.resthub.rpc.service.async.EchoService.class);
+        String message = "Hello Hessian!";
+        
+        try
+        {
+            Future<String> first = service.echo(message);
+            Future<String> second = service.echo(message);
+            
+            assertEquals(message, first.get());
+            assertEquals(message, second.get());
+        }
+        finally {
+            endpoint.destroy();
+        }
+    }
+
+    @Test
+    public void testBatching() throws Exception
+    {
+        EchoServiceEndpoint endpoint = new EchoServiceEndpoint();
+        endpoint.setConnectionFactory(connectionFactory);
+        endpoint.run();
+        
+        AMQPHessianProxyFactory factory = new AMQPHessianProxyFactory();
+        factory.setReadTimeout(5000);
+        factory.setConnectionFactory(connectionFactory);
+        factory.setBatchSize(5);
+        factory.setBatchDelay(50);
+        org.resthub.rpc.service.async.EchoService service = factory.create(org.resthub.rpc.service.async.EchoService.class);
+        EchoService syncService = factory.create(EchoService.class);
+        
+        try
+        {
+            // two full batches and a partial batch sent after the delay
+            List<Future<String>> replies = new ArrayList<Future<String>>();
+            for (int i = 0; i < 12; i++)
+            {
+                replies.add(service.echo("Hello Hessian " + i));
+            }
+            for (int i = 0; i < 12; i++)
+            {
+                assertEquals("Hello Hessian " + i, replies.get(i).get());
+            }
+            
+            // a single call is sent as a regular request
+            assertEquals("Hello Hessian!", syncService.echo("Hello Hessian!"));
+            try
+            {
+                syncService.exception("Hello Hessian!");
+                fail("No exception thrown");
+            }
+            catch (Exception e)
+            {
+                assertEquals("Hello Hessian!", e.getMessage());
+            }
+        }
+        finally {
+            factory.destroy();
+            endpoint.destroy();
+        }
+    }
+
+    @Test
+    public void testInvokeAll() throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        EchoServiceEndpoint endpoint = new EchoServiceEndpoint();
+        endpoint.setConnectionFactory(connectionFactory);
+        endpoint.setExecutor(executor);
+        endpoint.setParallelBatches(true);
+        endpoint.run();
+        
+        AMQPHessianProxyFactory factory = new AMQPHessianProxyFactory();
+        factory.setReadTimeout(5000);
+        factory.setConnectionFactory(connectionFactory);
+        factory.create(EchoService.class);
+        
+        try
+        {
+            List<Object[]> args = new ArrayList<Object[]>();
+            for (int i = 0; i < 100; i++)
+            {
+                args.add(new Object[] { "Hello Hessian " + i });
+            }
+            List<HessianFuture<Object>> results = factory.invokeAll(EchoService.class.getMethod("echo", String.class), args);
+            
+            assertEquals(100, results.size());
+            for (int i = 0; i < 100; i++)
+            {
+                assertEquals("Hello Hessian " + i, results.get(i).get());
+            }
+            
+            // the faults are returned for each call
+            results = factory.invokeAll(EchoService.class.getMethod("exception", String.class), args.subList(0, 2));
+            try
+            {
+                results.get(1).get();
+                fail("No exception thrown");
+            }
+            catch (ExecutionException e)
+            {
+                assertEquals("Hello Hessian 1", e.getCause().getMessage());
+            }
+        }
+        finally {
+            factory.destroy();
+            endpoint.destroy();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testAsyncEndpoint() throws Exception
+    {
+        HessianEndpoint endpoint = new HessianEndpoint(new org.resthub.rpc.service.async.EchoServiceImpl(200));
+        endpoint.setConnectionFactory(connectionFactory);
+        endpoint.setPrefetchCount(10);
+        endpoint.run();
+        
+        AMQPHessianProxyFactory factory = new AMQPHessianProxyFactory();
+        factory.setReadTimeout(5000);
+        factory.setConnectionFactory(connectionFactory);
+        org.resthub.rpc.service.async.EchoService service = factory.create(org.resthub.rpc.service.async.EchoService.class);
+        EchoService syncService = factory.create(EchoService.class);
+        
+        try
+        {
+            // a single consumer serves the concurrent calls
+            long start = System.currentTimeMillis();
+            List<Future<String>> replies = new ArrayList<Future<String>>();
+            for (int i = 0; i < 10; i++)
+            {
+                replies.add(service.echo("Hello Hessian " + i));
+            }
+            for (int i = 0; i < 10; i++)
+            {
+                assertEquals("Hello Hessian " + i, replies.get(i).get());
+            }
+            assertTrue(System.currentTimeMillis() - start < 1500);
+            
+            assertEquals("Hello Hessian!", syncService.echo("Hello Hessian!"));
+            
+            try
+            {
+                syncService.exception("Hello Hessian!");
+                fail("No exception thrown");
+            }
+            catch (Exception e)
+            {
+                assertEquals("Hello Hessian!", e.getMessage());
+            }
+        }
+        finally {
+            endpoint.destroy();
+            factory.destroy();
+        }
+    }
+
+    @Test
+    public void testExecutor() throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(5);
+        FailingServiceEndpoint endpoint = new FailingServiceEndpoint();
+        endpoint.setConnectionFactory(connectionFactory);
+        endpoint.setExecutor(executor);
+        endpoint.setPrefetchCount(5);
+        endpoint.run();
+        
+        AMQPHessianProxyFactory factory = new AMQPHessianProxyFactory();
+        factory.setReadTimeout(5000);
+        factory.setConnectionFactory(connectionFactory);
+        final FailingService service = factory.create(FailingService.class);
+        
+        ExecutorService clients = Executors.newFixedThreadPool(5);
+        try
+        {
+            // a single consumer serves the concurrent calls
+            long start = System.currentTimeMillis();
+            List<Future<?>> calls = new ArrayList<Future<?>>();
+            for (int i = 0; i < 5; i++)
+            {
+                calls.add(clients.submit(new Runnable()
+                {
+                    public void run()
+                    {
+                        service.timeout(300);
+                    }
+                }));
+            }
+            for (Future<?> call : calls)
+            {
+                call.get();
+            }
+            assertTrue(System.currentTimeMillis() - start < 1200);
+        }
+        finally {
+            clients.shutdown();
+            endpoint.destroy();
+            factory.destroy();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testAsyncException() throws Exception
+    {
+        EchoServiceEndpoint endpoint = new EchoServiceEndpoint();
+        endpoint.setConnectionFactory(connectionFactory);
+        endpoint.run();
+        
+        AMQPHessianProxyFactory factory = new AMQPHessianProxyFactory();
+        factory.setReadTimeout(5000);
+        factory.setConnectionFactory(connectionFactory);
+        org.resthub.rpc.service.async.EchoService service = factory.create(org.resthub.rpc.service.async.EchoService.class);
+        String message = "Hello Hessian!";
+        
+        try
+        {
+            service.exception(message).get();
+            fail("ExecutionException expected");
+        }
+        catch (ExecutionException e)
+        {
+            assertEquals("Exception message", message, e.getCause().getMessage());
+        }
+        finally {
+            endpoint.destroy();
+        }
+    }
+
     @Test
     public void testException() throws Exception
     {
@@ -104,6 +471,61 @@ public class AMQPHessianProxyTest
         }
     }
 
+    @Test
+    public void testCompressionThreshold() throws Exception
+    {
+        EchoServiceEndpoint endpoint = new EchoServiceEndpoint();
+        endpoint.setConnectionFactory(connectionFactory);
+        endpoint.setCompressionThreshold(512);
+        endpoint.run();
+        
+        AMQPHessianProxyFactory factory = new AMQPHessianProxyFactory();
+        factory.setReadTimeout(5000);
+        factory.setCompressed(true);
+        factory.setCompressionThreshold(512);
+        factory.setConnectionFactory(connectionFactory);
+        EchoService service = factory.create(EchoService.class);
+        
+        StringBuilder message = new StringBuilder();
+        for (int i = 0; i < 100; i++)
+        {
+            message.append("Hello Hessian! ");
+        }
+        
+        try
+        {
+            assertEquals("Hello Hessian!", service.echo("Hello Hessian!"));
+            assertEquals(message.toString(), service.echo(message.toString()));
+        }
+        finally {
+            endpoint.destroy();
+        }
+    }
+
+    @Test
+    public void testLZ4Compression() throws Exception
+    {
+        EchoServiceEndpoint endpoint = new EchoServiceEndpoint();
+        endpoint.setConnectionFactory(connectionFactory);
+        endpoint.run();
+        
+        AMQPHessianProxyFactory factory = new AMQPHessianProxyFactory();
+        factory.setReadTimeout(5000);
+        factory.setCompressed(true);
+        factory.setCompressionEncoding("lz4");
+        factory.setConnectionFactory(connectionFactory);
+        EchoService service = factory.create(EchoService.class);
+        
+        try
+        {
+            assertEquals("Hello Hessian!", service.echo("Hello Hessian!"));
+        }
+        finally {
+            endpoint.destroy();
+            factory.destroy();
+        }
+    }
+
     @Test
     public void testTimeout() throws Exception
     {
@@ -0,0 +1,101 @@
+/**
+ * Copyright 2013 resthub.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.resthub.rpc;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.fail;
+
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+public class AffinityRouterTest
+{
+    @Test
+    public void testKeyRouting()
+    {
+        AffinityRouter router = new AffinityRouter();
+        
+        assertEquals("key", router.getRoutingKey(new Object[] { 1, "key" }, 1));
+        assertEquals("42", router.getRoutingKey(new Object[] { 42L }, 0));
+        assertEquals("SECONDS", router.getRoutingKey(new Object[] { TimeUnit.SECONDS }, 0));
+        assertEquals("", router.getRoutingKey(new Object[] { null }, 0));
+    }
+
+    @Test
+    public void testLongKey()
+    {
+        StringBuilder key = new StringBuilder();
+        for (int i = 0; i < 100; i++)
+        {
+            key.append("key");
+        }
+        
+        String routingKey = AffinityRouter.getRoutingKey(key.toString());
+        assertEquals(Integer.toHexString(key.toString().hashCode()), routingKey);
+    }
+
+    @Test
+    public void testNonAsciiKey() throws Exception
+    {
+        // 100 chars, but 300 bytes in UTF-8
+        StringBuilder key = new StringBuilder();
+        for (int i = 0; i < 100; i++)
+        {
+            key.append("\u20ac");
+        }
+        String routingKey = AffinityRouter.getRoutingKey(key.toString());
+        assertEquals(Integer.toHexString(key.toString().hashCode()), routingKey);
+        
+        // the keys up to 255 bytes are kept
+        String longest = key.substring(0, 85);
+        assertEquals(AffinityRouter.MAX_KEY_BYTES, longest.getBytes("UTF-8").length);
+        assertEquals(longest, AffinityRouter.getRoutingKey(longest));
+        assertEquals("caf\u00e9", AffinityRouter.getRoutingKey("caf\u00e9"));
+    }
+
+    @Test
+    public void testKeyWithoutToString()
+    {
+        try
+        {
+            AffinityRouter.getRoutingKey(new Object());
+            fail("No exception thrown");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // expected
+        }
+        try
+        {
+            AffinityRouter.getRoutingKey(new byte[] { 1, 2 });
+            fail("No exception thrown");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void testSpreadWithoutKey()
+    {
+        AffinityRouter router = new AffinityRouter();
+        
+        assertFalse(router.getRoutingKey(new Object[0], -1).equals(router.getRoutingKey(new Object[0], -1)));
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright 2013 resthub.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.resthub.rpc;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+import static org.testng.AssertJUnit.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+public class BatchCodecTest
+{
+    @Test
+    public void testRequests() throws Exception
+    {
+        List<byte[]> requests = Arrays.asList("first".getBytes(), new byte[0], "third".getBytes());
+        List<Long> deadlines = Arrays.asList(1L, 2L, Long.MAX_VALUE);
+        
+        List<Long> decodedDeadlines = new ArrayList<Long>();
+        List<byte[]> decoded = BatchCodec.decodeRequests(BatchCodec.encodeRequests(requests, deadlines), decodedDeadlines);
+        
+        assertEquals(deadlines, decodedDeadlines);
+        assertEquals(3, decoded.size());
+        for (int i = 0; i < 3; i++)
+        {
+            assertTrue(Arrays.equals(requests.get(i), decoded.get(i)));
+        }
+    }
+
+    @Test
+    public void testReplies() throws Exception
+    {
+        byte[][] replies = { "first".getBytes(), null, "third".getBytes() };
+        
+        List<byte[]> decoded = BatchCodec.decodeReplies(BatchCodec.encodeReplies(replies));
+        
+        assertEquals(3, decoded.size());
+        assertEquals("first", new String(decoded.get(0)));
+        assertEquals(0, decoded.get(1).length);
+        assertEquals("third", new String(decoded.get(2)));
+    }
+
+    @Test
+    public void testInvalidBatch() throws Exception
+    {
+        byte[] body = BatchCodec.encodeReplies(new byte[][] { "first".getBytes() });
+        body[7] = 100;
+        try
+        {
+            BatchCodec.decodeReplies(body);
+            fail("No exception thrown");
+        }
+        catch (IOException e)
+        {
+            // expected
+        }
+    }
+}
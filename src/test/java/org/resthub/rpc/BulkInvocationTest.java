@@ -0,0 +1,99 @@
+/**
+ * Copyright 2013 resthub.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.resthub.rpc;
+
+import static org.testng.AssertJUnit.assertEquals;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.resthub.rpc.service.EchoService;
+import org.resthub.rpc.service.EchoServiceImpl;
+import org.springframework.amqp.core.Message;
+import org.testng.annotations.Test;
+
+public class BulkInvocationTest
+{
+    /**
+     * Factory sending the requests directly to a delegate.
+     */
+    private static class TestFactory extends AMQPHessianProxyFactory
+    {
+        private final RawMessageDelegate delegate = new RawMessageDelegate(EchoService.class, new EchoServiceImpl(), null);
+        private final List<String> routingKeys = new ArrayList<String>();
+
+        TestFactory()
+        {
+            setServiceInterface(EchoService.class);
+        }
+
+        @Override
+        HessianFuture<Message> send(String exchange, String routingKey, Message message, long timeout)
+        {
+            routingKeys.add(routingKey);
+            HessianFuture<Message> reply = new HessianFuture<Message>();
+            reply.set(delegate.handleMessage(message));
+            return reply;
+        }
+    }
+
+    private List<Object[]> createArgs(Object... values)
+    {
+        List<Object[]> args = new ArrayList<Object[]>();
+        for (Object value : values)
+        {
+            args.add(value != null ? new Object[] { value } : new Object[0]);
+        }
+        return args;
+    }
+
+    @Test
+    public void testKeylessCalls() throws Exception
+    {
+        TestFactory factory = new TestFactory();
+        factory.setAffinity(true);
+        AMQPHessianProxy proxy = new AMQPHessianProxy(factory);
+        Method method = EchoService.class.getMethod("doNothing");
+        
+        List<HessianFuture<Object>> results = proxy.invokeAll(method, createArgs(null, null, null));
+        
+        // a single message for the calls without key
+        assertEquals(1, factory.routingKeys.size());
+        for (HessianFuture<Object> result : results)
+        {
+            result.get();
+        }
+    }
+
+    @Test
+    public void testShardedCalls() throws Exception
+    {
+        TestFactory factory = new TestFactory();
+        factory.setShards(4);
+        AMQPHessianProxy proxy = new AMQPHessianProxy(factory);
+        Method method = EchoService.class.getMethod("echo", String.class);
+        
+        List<HessianFuture<Object>> results = proxy.invokeAll(method, createArgs("a", "b", "a", "b", "a"));
+        
+        // a message per shard
+        int shards = new HashSet<Integer>(Arrays.asList(ShardRouter.getShard("a", 4), ShardRouter.getShard("b", 4))).size();
+        assertEquals(shards, factory.routingKeys.size());
+        assertEquals("b", results.get(3).get());
+    }
+}
@@ -0,0 +1,205 @@
+/**
+ * Copyright 2013 resthub.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.resthub.rpc;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.resthub.rpc.service.EchoService;
+import org.resthub.rpc.service.EchoServiceImpl;
+import org.springframework.amqp.core.AcknowledgeMode;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.core.ChannelAwareMessageListener;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.testng.annotations.Test;
+
+import com.caucho.hessian.io.Hessian2Output;
+import com.rabbitmq.client.Channel;
+
+public class ConsumerAutoscalerTest
+{
+    /**
+     * Endpoint creating containers that are never started.
+     */
+    private static class TestEndpoint extends HessianEndpoint
+    {
+        private final List<ChannelAwareMessageListener> listeners = new ArrayList<ChannelAwareMessageListener>();
+        private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        private RawMessageDelegate delegate;
+
+        TestEndpoint()
+        {
+            super(new EchoServiceImpl());
+        }
+
+        @Override
+        SimpleMessageListenerContainer createListenerContainer(int consumers, Object listener)
+        {
+            listeners.add((ChannelAwareMessageListener) listener);
+            return new SimpleMessageListenerContainer()
+            {
+                @Override
+                public void start()
+                {
+                }
+
+                @Override
+                public void destroy()
+                {
+                    events.add("destroy");
+                }
+            };
+        }
+
+        @Override
+        RawMessageDelegate getDelegate()
+        {
+            return delegate;
+        }
+    }
+
+    /**
+     * Creates a channel recording the names of the methods called.
+     */
+    private Channel createChannel(final List<String> calls)
+    {
+        return (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class[] { Channel.class }, 
+                new InvocationHandler()
+                {
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                    {
+                        calls.add(method.getName());
+                        return null;
+                    }
+                });
+    }
+
+    @Test
+    public void testScaleUp()
+    {
+        ConsumerAutoscaler autoscaler = new ConsumerAutoscaler(new TestEndpoint(), null, new String[] { "queue" }, 2, 10, 10);
+        
+        // a single check with a backlog isn't enough
+        autoscaler.check(100);
+        assertEquals(2, autoscaler.getConsumerCount());
+        
+        // enough consumers for the backlog
+        autoscaler.check(50);
+        assertEquals(5, autoscaler.getConsumerCount());
+        
+        // bounded by the maximum
+        autoscaler.check(500);
+        autoscaler.check(500);
+        assertEquals(10, autoscaler.getConsumerCount());
+        
+        autoscaler.destroy();
+        assertEquals(2, autoscaler.getConsumerCount());
+    }
+
+    @Test
+    public void testScaleDown()
+    {
+        ConsumerAutoscaler autoscaler = new ConsumerAutoscaler(new TestEndpoint(), null, new String[] { "queue" }, 1, 10, 10);
+        autoscaler.check(100);
+        autoscaler.check(100);
+        assertEquals(10, autoscaler.getConsumerCount());
+        
+        for (int i = 1; i < ConsumerAutoscaler.SCALE_DOWN_CHECKS; i++)
+        {
+            autoscaler.check(0);
+        }
+        assertEquals(10, autoscaler.getConsumerCount());
+        
+        // a request in the queue resets the idle period
+        autoscaler.check(5);
+        autoscaler.check(0);
+        assertEquals(10, autoscaler.getConsumerCount());
+        
+        for (int i = 0; i < ConsumerAutoscaler.SCALE_DOWN_CHECKS; i++)
+        {
+            autoscaler.check(0);
+        }
+        assertEquals(9, autoscaler.getConsumerCount());
+    }
+
+    @Test
+    public void testMinimum()
+    {
+        ConsumerAutoscaler autoscaler = new ConsumerAutoscaler(new TestEndpoint(), null, new String[] { "queue" }, 3, 10, 10);
+        for (int i = 0; i < 3 * ConsumerAutoscaler.SCALE_DOWN_CHECKS; i++)
+        {
+            autoscaler.check(0);
+        }
+        assertEquals(3, autoscaler.getConsumerCount());
+    }
+
+    @Test
+    public void testScaleDownInFlight() throws Exception
+    {
+        // the executor runs the requests when the test says so
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        final TestEndpoint endpoint = new TestEndpoint();
+        endpoint.delegate = new RawMessageDelegate(EchoService.class, new EchoServiceImpl(), null);
+        endpoint.delegate.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+        endpoint.delegate.setExecutor(new Executor()
+        {
+            public void execute(Runnable task)
+            {
+                tasks.add(task);
+            }
+        });
+        
+        final ConsumerAutoscaler autoscaler = new ConsumerAutoscaler(endpoint, null, new String[] { "queue" }, 1, 2, 10);
+        autoscaler.check(100);
+        autoscaler.check(100);
+        assertEquals(2, autoscaler.getConsumerCount());
+        
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        Hessian2Output out = new Hessian2Output(body);
+        out.call("echo", new Object[] { "Hello Hessian" });
+        out.close();
+        MessageProperties props = new MessageProperties();
+        props.setReplyTo("reply");
+        endpoint.listeners.get(0).onMessage(new Message(body.toByteArray(), props), createChannel(endpoint.events));
+        
+        // the check doesn't wait for the request in progress
+        for (int i = 0; i < ConsumerAutoscaler.SCALE_DOWN_CHECKS; i++)
+        {
+            autoscaler.check(0);
+        }
+        assertEquals(1, autoscaler.getConsumerCount());
+        
+        // the container isn't destroyed while the request is in progress
+        Thread.sleep(200);
+        assertTrue(endpoint.events.isEmpty());
+        
+        tasks.get(0).run();
+        autoscaler.destroy();
+        assertEquals(Arrays.asList("basicPublish", "basicAck", "destroy"), endpoint.events);
+        assertEquals(1, autoscaler.getConsumerCount());
+    }
+}
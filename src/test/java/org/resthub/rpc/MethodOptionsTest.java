@@ -0,0 +1,90 @@
+/**
+ * Copyright 2013 resthub.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.resthub.rpc;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+
+import org.resthub.rpc.CallOptions.Compression;
+import org.testng.annotations.Test;
+
+public class MethodOptionsTest
+{
+    @CallOptions(compression = Compression.ENABLED)
+    public interface ReportService
+    {
+        String find(String id);
+        
+        @CallOptions(timeout = 30000, compression = Compression.DISABLED, priority = 1)
+        String report(String id);
+        
+        @CallOptions(priority = 5)
+        void refresh();
+    }
+
+    private MethodDescriptor getDescriptor(AMQPHessianProxyFactory factory, String name) throws Exception
+    {
+        for (Method method : ReportService.class.getMethods())
+        {
+            if (method.getName().equals(name))
+            {
+                return new MethodDescriptor(method, false, "ReportService", "ReportService", 
+                        factory.getMethodOptions(method));
+            }
+        }
+        throw new NoSuchMethodException(name);
+    }
+
+    @Test
+    public void testAnnotations() throws Exception
+    {
+        AMQPHessianProxyFactory factory = new AMQPHessianProxyFactory();
+        factory.setReadTimeout(2000);
+        
+        // the options of the interface
+        MethodDescriptor find = getDescriptor(factory, "find");
+        assertEquals(2000, find.getTimeout());
+        assertTrue(find.isCompressed());
+        assertNull(find.getPriority());
+        
+        // the options of the method
+        MethodDescriptor report = getDescriptor(factory, "report");
+        assertEquals(30000, report.getTimeout());
+        assertFalse(report.isCompressed());
+        assertEquals(Integer.valueOf(1), report.getPriority());
+    }
+
+    @Test
+    public void testMethodOptions() throws Exception
+    {
+        MethodOptions options = new MethodOptions();
+        options.setTimeout(100L);
+        
+        AMQPHessianProxyFactory factory = new AMQPHessianProxyFactory();
+        factory.setMethodOptions(Collections.singletonMap("refresh", options));
+        
+        // the options set override the annotations, the others are inherited
+        MethodDescriptor refresh = getDescriptor(factory, "refresh");
+        assertEquals(100, refresh.getTimeout());
+        assertTrue(refresh.isCompressed());
+        assertEquals(Integer.valueOf(5), refresh.getPriority());
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright 2013 resthub.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.resthub.rpc;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.fail;
+
+import java.util.Arrays;
+
+import org.resthub.rpc.service.EchoService;
+import org.resthub.rpc.service.EchoServiceImpl;
+import org.resthub.rpc.service.FailingService;
+import org.resthub.rpc.service.FailingServiceImpl;
+import org.springframework.amqp.rabbit.connection.CachingConnectionFactory;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+public class MultiServiceEndpointTest
+{
+    private CachingConnectionFactory connectionFactory;
+
+    @BeforeClass
+    protected void setUp() throws Exception
+    {
+        connectionFactory = new CachingConnectionFactory("localhost", 5672);
+        connectionFactory.setUsername("guest");
+        connectionFactory.setPassword("guest");
+    }
+
+    @AfterClass
+    protected void tearDown() throws Exception
+    {
+        connectionFactory.destroy();
+    }
+
+    private AMQPHessianProxyFactory createFactory()
+    {
+        AMQPHessianProxyFactory factory = new AMQPHessianProxyFactory();
+        factory.setReadTimeout(5000);
+        factory.setQueueName("services");
+        factory.setConnectionFactory(connectionFactory);
+        return factory;
+    }
+
+    @Test
+    public void testServices() throws Exception
+    {
+        MultiServiceEndpoint endpoint = new MultiServiceEndpoint("services");
+        endpoint.setConnectionFactory(connectionFactory);
+        endpoint.setServices(Arrays.<Object>asList(new EchoServiceImpl(), new FailingServiceImpl()));
+        endpoint.run();
+        
+        AMQPHessianProxyFactory echoFactory = createFactory();
+        AMQPHessianProxyFactory failingFactory = createFactory();
+        EchoService echoService = echoFactory.create(EchoService.class);
+        FailingService failingService = failingFactory.create(FailingService.class);
+        
+        try
+        {
+            assertEquals("Hello Hessian!", echoService.echo("Hello Hessian!"));
+            failingService.timeout(10);
+            
+            try
+            {
+                echoService.exception("Hello Hessian!");
+                fail("No exception thrown");
+            }
+            catch (Exception e)
+            {
+                assertEquals("Hello Hessian!", e.getMessage());
+            }
+        }
+        finally
+        {
+            endpoint.destroy();
+            echoFactory.destroy();
+            failingFactory.destroy();
+        }
+    }
+
+    @Test
+    public void testUnknownService() throws Exception
+    {
+        MultiServiceEndpoint endpoint = new MultiServiceEndpoint("services");
+        endpoint.setConnectionFactory(connectionFactory);
+        endpoint.addService(FailingService.class, new FailingServiceImpl());
+        endpoint.run();
+        
+        AMQPHessianProxyFactory factory = createFactory();
+        EchoService service = factory.create(EchoService.class);
+        
+        try
+        {
+            service.echo("Hello Hessian!");
+            fail("No exception thrown");
+        }
+        catch (Exception e)
+        {
+            // expected
+        }
+        finally
+        {
+            endpoint.destroy();
+            factory.destroy();
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testDuplicateServiceName()
+    {
+        MultiServiceEndpoint endpoint = new MultiServiceEndpoint("services");
+        endpoint.addService(EchoService.class, new EchoServiceImpl());
+        endpoint.addService(org.resthub.rpc.service.async.EchoService.class, new org.resthub.rpc.service.async.EchoServiceImpl(0));
+    }
+}
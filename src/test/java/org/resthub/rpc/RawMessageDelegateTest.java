@@ -0,0 +1,277 @@
+/**
+ * Copyright 2013 resthub.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.resthub.rpc;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNotNull;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.resthub.rpc.compression.DeflateCodec;
+import org.resthub.rpc.service.EchoService;
+import org.resthub.rpc.service.EchoServiceImpl;
+import org.springframework.amqp.core.AcknowledgeMode;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.testng.annotations.Test;
+
+import com.caucho.hessian.io.Hessian2Input;
+import com.caucho.hessian.io.Hessian2Output;
+import com.rabbitmq.client.Channel;
+
+public class RawMessageDelegateTest
+{
+    private byte[] createBody(String method, Object... args) throws Exception
+    {
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        Hessian2Output out = new Hessian2Output(request);
+        out.call(method, args);
+        out.close();
+        return request.toByteArray();
+    }
+
+    private Object readReply(byte[] reply) throws Throwable
+    {
+        ByteArrayInputStream is = new ByteArrayInputStream(reply);
+        assertEquals('H', is.read());
+        is.read();
+        is.read();
+        return new Hessian2Input(is).readReply(Object.class);
+    }
+
+    /**
+     * Creates a channel recording the names of the methods called.
+     */
+    private Channel createChannel(final List<String> calls)
+    {
+        return (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class[] { Channel.class }, 
+                new InvocationHandler()
+                {
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                    {
+                        calls.add(method.getName());
+                        return null;
+                    }
+                });
+    }
+
+    private Message createRequest(Long deadline) throws Exception
+    {
+        MessageProperties props = new MessageProperties();
+        props.setContentType(HessianHeaders.CONTENT_TYPE);
+        if (deadline != null)
+        {
+            props.setHeader(HessianHeaders.DEADLINE, deadline);
+        }
+        
+        return new Message(createBody("echo", "Hello Hessian!"), props);
+    }
+
+    @Test
+    public void testDeadline() throws Exception
+    {
+        RawMessageDelegate delegate = new RawMessageDelegate(EchoService.class, new EchoServiceImpl(), null);
+        
+        assertNotNull(delegate.handleMessage(createRequest(null)));
+        assertNotNull(delegate.handleMessage(createRequest(System.currentTimeMillis() + 5000)));
+        assertEquals(0, delegate.getExpiredRequestCount());
+        
+        // the client no longer waits for the reply
+        assertNull(delegate.handleMessage(createRequest(System.currentTimeMillis() - 1)));
+        assertEquals(1, delegate.getExpiredRequestCount());
+    }
+
+    @Test
+    public void testBatch() throws Throwable
+    {
+        RawMessageDelegate delegate = new RawMessageDelegate(EchoService.class, new EchoServiceImpl(), null);
+        
+        long deadline = System.currentTimeMillis() + 5000;
+        List<byte[]> requests = Arrays.asList(createBody("echo", "first"), createBody("echo", "second"), 
+                createBody("echo", "expired"), createBody("exception", "failure"));
+        MessageProperties props = new MessageProperties();
+        props.setContentType(HessianHeaders.CONTENT_TYPE);
+        props.setHeader(HessianHeaders.BATCH, requests.size());
+        byte[] body = BatchCodec.encodeRequests(requests, Arrays.asList(deadline, deadline, 1L, deadline));
+        
+        List<byte[]> replies = BatchCodec.decodeReplies(delegate.handleMessage(new Message(body, props)).getBody());
+        
+        assertEquals(4, replies.size());
+        assertEquals("first", readReply(replies.get(0)));
+        assertEquals("second", readReply(replies.get(1)));
+        assertEquals(0, replies.get(2).length);
+        assertEquals(1, delegate.getExpiredRequestCount());
+        try
+        {
+            readReply(replies.get(3));
+            fail("No exception thrown");
+        }
+        catch (Exception e)
+        {
+            assertEquals("failure", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testParallelBatch() throws Throwable
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        RawMessageDelegate delegate = new RawMessageDelegate(EchoService.class, new EchoServiceImpl(), null);
+        delegate.setExecutor(executor);
+        delegate.setParallelBatches(true);
+        
+        List<byte[]> requests = new ArrayList<byte[]>();
+        List<Long> deadlines = new ArrayList<Long>();
+        for (int i = 0; i < 20; i++)
+        {
+            requests.add(createBody("echo", "Hello Hessian " + i));
+            deadlines.add(System.currentTimeMillis() + 5000);
+        }
+        MessageProperties props = new MessageProperties();
+        props.setContentType(HessianHeaders.CONTENT_TYPE);
+        props.setHeader(HessianHeaders.BATCH, requests.size());
+        
+        try
+        {
+            Message reply = delegate.handleMessage(new Message(BatchCodec.encodeRequests(requests, deadlines), props));
+            List<byte[]> replies = BatchCodec.decodeReplies(reply.getBody());
+            
+            // the replies are in the order of the requests
+            for (int i = 0; i < 20; i++)
+            {
+                assertEquals("Hello Hessian " + i, readReply(replies.get(i)));
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testUnreadableBatch() throws Throwable
+    {
+        RawMessageDelegate delegate = new RawMessageDelegate(EchoService.class, new EchoServiceImpl(), null);
+        delegate.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+        delegate.setCompressionThreshold(Integer.MAX_VALUE);
+        
+        MessageProperties props = new MessageProperties();
+        props.setContentType(HessianHeaders.CONTENT_TYPE);
+        props.setReplyTo("reply");
+        props.setHeader(HessianHeaders.BATCH, 2);
+        Message request = new Message(new byte[] { 1, 2, 3 }, props);
+        
+        // the calls can't be read, a fault is replied to each of them
+        List<String> calls = new ArrayList<String>();
+        delegate.onMessage(request, createChannel(calls));
+        assertEquals(Arrays.asList("basicPublish", "basicAck"), calls);
+        
+        Message reply = delegate.handleMessage(request);
+        assertEquals(2, reply.getMessageProperties().getHeaders().get(HessianHeaders.BATCH));
+        List<byte[]> replies = BatchCodec.decodeReplies(reply.getBody());
+        assertEquals(2, replies.size());
+        for (byte[] fault : replies)
+        {
+            try
+            {
+                readReply(fault);
+                fail("No exception thrown");
+            }
+            catch (IOException e)
+            {
+                // the batch can't be decoded
+            }
+        }
+        
+        // without a valid number of calls, a single fault is replied
+        props.setHeader(HessianHeaders.BATCH, "unknown");
+        reply = delegate.handleMessage(request);
+        assertNull(reply.getMessageProperties().getHeaders().get(HessianHeaders.BATCH));
+        try
+        {
+            readReply(reply.getBody());
+            fail("No exception thrown");
+        }
+        catch (IOException e)
+        {
+            // the batch can't be decoded
+        }
+    }
+
+    @Test
+    public void testUndecodableRequest() throws Throwable
+    {
+        RawMessageDelegate delegate = new RawMessageDelegate(EchoService.class, new EchoServiceImpl(), null);
+        delegate.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+        // the fault is read uncompressed
+        delegate.setCompressionThreshold(Integer.MAX_VALUE);
+        
+        MessageProperties props = new MessageProperties();
+        props.setContentType(HessianHeaders.CONTENT_TYPE);
+        props.setContentEncoding(DeflateCodec.ENCODING);
+        props.setHeader(HessianHeaders.DICTIONARY, "unknown");
+        props.setReplyTo("reply");
+        Message request = new Message(createBody("echo", "Hello Hessian!"), props);
+        
+        // the fault is replied and the request acknowledged
+        List<String> calls = new ArrayList<String>();
+        delegate.onMessage(request, createChannel(calls));
+        assertEquals(Arrays.asList("basicPublish", "basicAck"), calls);
+        
+        try
+        {
+            readReply(delegate.handleMessage(request).getBody());
+            fail("No exception thrown");
+        }
+        catch (IOException e)
+        {
+            assertEquals("Unknown compression dictionary: unknown", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testCorruptRequest() throws Throwable
+    {
+        RawMessageDelegate delegate = new RawMessageDelegate(EchoService.class, new EchoServiceImpl(), null);
+        delegate.setCompressionThreshold(Integer.MAX_VALUE);
+        
+        MessageProperties props = new MessageProperties();
+        props.setContentType(HessianHeaders.CONTENT_TYPE);
+        props.setContentEncoding(DeflateCodec.ENCODING);
+        
+        try
+        {
+            readReply(delegate.handleMessage(new Message(new byte[] { 1, 2, 3 }, props)).getBody());
+            fail("No exception thrown");
+        }
+        catch (IOException e)
+        {
+            // the request can't be inflated
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/**
+ * Copyright 2013 resthub.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.resthub.rpc;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.resthub.rpc.service.EchoService;
+import org.resthub.rpc.service.EchoServiceImpl;
+import org.springframework.amqp.core.Message;
+import org.testng.annotations.Test;
+
+import com.caucho.hessian.io.Hessian2Input;
+import com.caucho.hessian.io.Hessian2Output;
+
+public class RequestBatcherTest
+{
+    /**
+     * Factory sending the requests directly to a delegate.
+     */
+    private static class TestFactory extends AMQPHessianProxyFactory
+    {
+        private final RawMessageDelegate delegate = new RawMessageDelegate(EchoService.class, new EchoServiceImpl(), null);
+        private final List<Message> sent = new ArrayList<Message>();
+        private final List<String> routingKeys = new ArrayList<String>();
+
+        @Override
+        HessianFuture<Message> send(String exchange, String routingKey, Message message, long timeout)
+        {
+            sent.add(message);
+            routingKeys.add(routingKey);
+            HessianFuture<Message> reply = new HessianFuture<Message>();
+            reply.set(delegate.handleMessage(message));
+            return reply;
+        }
+    }
+
+    private byte[] createBody(String message) throws Exception
+    {
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        Hessian2Output out = new Hessian2Output(request);
+        out.call("echo", new Object[] { message });
+        out.close();
+        return request.toByteArray();
+    }
+
+    private Object readReply(Message reply) throws Throwable
+    {
+        ByteArrayInputStream is = new ByteArrayInputStream(reply.getBody());
+        assertEquals('H', is.read());
+        is.read();
+        is.read();
+        return new Hessian2Input(is).readReply(Object.class);
+    }
+
+    private MethodDescriptor getDescriptor(AMQPHessianProxyFactory factory) throws Exception
+    {
+        Method method = EchoService.class.getMethod("echo", String.class);
+        return new MethodDescriptor(method, false, "EchoService", "EchoService", factory.getMethodOptions(method));
+    }
+
+    @Test
+    public void testFullBatch() throws Throwable
+    {
+        TestFactory factory = new TestFactory();
+        RequestBatcher batcher = new RequestBatcher(factory, 3, 60000);
+        MethodDescriptor method = getDescriptor(factory);
+        
+        List<HessianFuture<Message>> replies = new ArrayList<HessianFuture<Message>>();
+        for (int i = 0; i < 3; i++)
+        {
+            replies.add(batcher.add(method, "EchoService", "EchoService", createBody("Hello Hessian " + i)));
+        }
+        
+        // a single message for the batch
+        assertEquals(1, factory.sent.size());
+        assertEquals(3, factory.sent.get(0).getMessageProperties().getHeaders().get(HessianHeaders.BATCH));
+        for (int i = 0; i < 3; i++)
+        {
+            assertEquals("Hello Hessian " + i, readReply(replies.get(i).get()));
+        }
+        
+        batcher.destroy();
+    }
+
+    @Test
+    public void testDelayedBatch() throws Throwable
+    {
+        TestFactory factory = new TestFactory();
+        RequestBatcher batcher = new RequestBatcher(factory, 10, 50);
+        MethodDescriptor method = getDescriptor(factory);
+        
+        HessianFuture<Message> first = batcher.add(method, "EchoService", "EchoService", createBody("first"));
+        HessianFuture<Message> second = batcher.add(method, "EchoService", "EchoService", createBody("second"));
+        assertFalse(first.isDone());
+        
+        // sent after the delay
+        assertEquals("first", readReply(first.get()));
+        assertEquals("second", readReply(second.get()));
+        assertEquals(1, factory.sent.size());
+        
+        batcher.destroy();
+    }
+
+    @Test
+    public void testSingleCall() throws Throwable
+    {
+        TestFactory factory = new TestFactory();
+        RequestBatcher batcher = new RequestBatcher(factory, 10, 60000);
+        MethodDescriptor method = getDescriptor(factory);
+        
+        HessianFuture<Message> reply = batcher.add(method, "EchoService", "EchoService", createBody("single"));
+        
+        // the pending batches are sent on destroy, a single call as a regular request
+        batcher.destroy();
+        assertNull(factory.sent.get(0).getMessageProperties().getHeaders().get(HessianHeaders.BATCH));
+        assertEquals("single", readReply(reply.get()));
+    }
+
+    @Test
+    public void testRoutedBatch() throws Throwable
+    {
+        TestFactory factory = new TestFactory();
+        RequestBatcher batcher = new RequestBatcher(factory, 3, 60000);
+        Method echo = EchoService.class.getMethod("echo", String.class);
+        MethodDescriptor method = new MethodDescriptor(echo, false, "EchoService", "EchoService", 
+                new ShardRouter("EchoService", 4), factory.getMethodOptions(echo));
+        
+        // the calls without key share a batch, routed to a single shard
+        List<HessianFuture<Message>> replies = new ArrayList<HessianFuture<Message>>();
+        for (int i = 0; i < 3; i++)
+        {
+            replies.add(batcher.add(method, null, "EchoService", createBody("Hello Hessian " + i)));
+        }
+        
+        assertEquals(1, factory.sent.size());
+        assertEquals("EchoService.0", factory.routingKeys.get(0));
+        for (int i = 0; i < 3; i++)
+        {
+            assertEquals("Hello Hessian " + i, readReply(replies.get(i).get()));
+        }
+        
+        batcher.destroy();
+    }
+
+    @Test
+    public void testUnreadableBatch() throws Throwable
+    {
+        // the body of the batch is corrupted on its way to the endpoint
+        TestFactory factory = new TestFactory()
+        {
+            @Override
+            HessianFuture<Message> send(String exchange, String routingKey, Message message, long timeout)
+            {
+                return super.send(exchange, routingKey, new Message(new byte[] { 1, 2 }, message.getMessageProperties()), timeout);
+            }
+        };
+        factory.delegate.setCompressionThreshold(Integer.MAX_VALUE);
+        RequestBatcher batcher = new RequestBatcher(factory, 3, 60000);
+        MethodDescriptor method = getDescriptor(factory);
+        
+        List<HessianFuture<Message>> replies = new ArrayList<HessianFuture<Message>>();
+        for (int i = 0; i < 3; i++)
+        {
+            replies.add(batcher.add(method, "EchoService", "EchoService", createBody("Hello Hessian " + i)));
+        }
+        
+        // the single fault replied is the reply of all the calls
+        for (HessianFuture<Message> reply : replies)
+        {
+            try
+            {
+                readReply(reply.get());
+                fail("No exception thrown");
+            }
+            catch (IOException e)
+            {
+                // the batch can't be decoded
+            }
+        }
+        
+        batcher.destroy();
+    }
+}
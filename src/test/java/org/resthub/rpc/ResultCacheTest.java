@@ -0,0 +1,166 @@
+/**
+ * Copyright 2013 resthub.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.resthub.rpc;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNull;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+
+import org.springframework.amqp.core.Message;
+import org.testng.annotations.Test;
+
+public class ResultCacheTest
+{
+    /**
+     * Country lookups, with the same methods as the currency lookups.
+     */
+    public interface CountryService
+    {
+        @CachedResult(ttl = 60000)
+        String name(String code);
+    }
+
+    /**
+     * Currency lookups.
+     */
+    public interface CurrencyService
+    {
+        @CachedResult(ttl = 60000)
+        String name(String code);
+    }
+
+    public static class CountryServiceImpl implements CountryService
+    {
+        public String name(String code)
+        {
+            return "country " + code;
+        }
+    }
+
+    public static class CurrencyServiceImpl implements CurrencyService
+    {
+        public String name(String code)
+        {
+            return "currency " + code;
+        }
+    }
+
+    /**
+     * Factory sending the requests directly to a delegate serving both services.
+     */
+    private static class TestFactory extends AMQPHessianProxyFactory
+    {
+        private final RawMessageDelegate delegate = new RawMessageDelegate();
+        private int sent;
+
+        TestFactory()
+        {
+            delegate.addService(CountryService.class, new CountryServiceImpl());
+            delegate.addService(CurrencyService.class, new CurrencyServiceImpl());
+        }
+
+        @Override
+        Message sendRequest(MethodDescriptor method, String routingKey, String service, byte[] payload) throws IOException
+        {
+            sent++;
+            return delegate.handleMessage(createRequestMessage(service, payload, false, method.getTimeout(), null));
+        }
+
+        <T> T createProxy(Class<T> api)
+        {
+            setServiceInterface(api);
+            return api.cast(Proxy.newProxyInstance(api.getClassLoader(), new Class[] { api }, new AMQPHessianProxy(this)));
+        }
+    }
+
+    private RequestKey key(String request)
+    {
+        return new RequestKey("EchoService", request.getBytes());
+    }
+
+    @Test
+    public void testHit()
+    {
+        ResultCache cache = new ResultCache(10, 0);
+        cache.put(key("request"), "reply".getBytes(), 10000);
+        
+        assertEquals("reply", new String(cache.get(key("request"))));
+        assertNull(cache.get(key("other")));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testExpiration() throws Exception
+    {
+        ResultCache cache = new ResultCache(10, 0);
+        cache.put(key("request"), "reply".getBytes(), 20);
+        Thread.sleep(50);
+        
+        assertNull(cache.get(key("request")));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testEvictionBySize()
+    {
+        ResultCache cache = new ResultCache(2, 0);
+        cache.put(key("first"), "1".getBytes(), 10000);
+        cache.put(key("second"), "2".getBytes(), 10000);
+        // the first entry is now the most recently used
+        cache.get(key("first"));
+        cache.put(key("third"), "3".getBytes(), 10000);
+        
+        assertEquals(2, cache.size());
+        assertEquals("1", new String(cache.get(key("first"))));
+        assertNull(cache.get(key("second")));
+    }
+
+    @Test
+    public void testEvictionByBytes()
+    {
+        ResultCache cache = new ResultCache(10, 10);
+        cache.put(key("first"), "12345".getBytes(), 10000);
+        cache.put(key("second"), "12345".getBytes(), 10000);
+        cache.put(key("third"), "123".getBytes(), 10000);
+        // larger than the cache
+        cache.put(key("fourth"), "12345678901".getBytes(), 10000);
+        
+        assertEquals(2, cache.size());
+        assertNull(cache.get(key("first")));
+        assertNull(cache.get(key("fourth")));
+        assertEquals("12345", new String(cache.get(key("second"))));
+    }
+
+    @Test
+    public void testServices()
+    {
+        // a factory creating the proxies of several services
+        TestFactory factory = new TestFactory();
+        CountryService countries = factory.createProxy(CountryService.class);
+        CurrencyService currencies = factory.createProxy(CurrencyService.class);
+        
+        assertEquals("country EUR", countries.name("EUR"));
+        assertEquals("currency EUR", currencies.name("EUR"));
+        assertEquals("country EUR", countries.name("EUR"));
+        assertEquals("currency EUR", currencies.name("EUR"));
+        
+        assertEquals(2, factory.sent);
+        assertEquals(2, factory.getCacheHitCount());
+    }
+}
@@ -0,0 +1,363 @@
+/**
+ * Copyright 2013 resthub.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.resthub.rpc;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+import static org.testng.AssertJUnit.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import org.resthub.rpc.service.EchoService;
+import org.resthub.rpc.service.EchoServiceImpl;
+import org.testng.annotations.Test;
+
+import com.caucho.hessian.io.Hessian2Input;
+import com.caucho.hessian.io.Hessian2Output;
+import com.caucho.hessian.io.HessianInput;
+import com.caucho.hessian.io.HessianOutput;
+import com.caucho.services.server.AbstractSkeleton;
+
+public class ServiceDispatcherTest
+{
+    public interface Calculator
+    {
+        int add(int a, int b);
+        
+        double add(double a, double b);
+    }
+
+    public static class CalculatorImpl implements Calculator
+    {
+        public int add(int a, int b)
+        {
+            return a + b;
+        }
+
+        public double add(double a, double b)
+        {
+            return a + b;
+        }
+    }
+
+    public interface PersonService
+    {
+        String findById(long id);
+        
+        String findByName(String name);
+    }
+
+    public static class PersonServiceImpl implements PersonService
+    {
+        final List<List<Long>> batches = new ArrayList<List<Long>>();
+
+        @BatchedBy(value = "findByIds", delay = 20)
+        public String findById(long id)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public List<String> findByIds(List<Long> ids)
+        {
+            batches.add(ids);
+            List<String> persons = new ArrayList<String>();
+            for (long id : ids)
+            {
+                persons.add("person" + id);
+            }
+            return persons;
+        }
+
+        // only a full batch is executed during the test
+        @BatchedBy(value = "findByNames", delay = 60000, maxSize = 2)
+        public String findByName(String name)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public Map<String, String> findByNames(List<String> names)
+        {
+            if (names.contains("failure"))
+            {
+                throw new IllegalArgumentException("No person named failure");
+            }
+            return Collections.singletonMap(names.get(0), "person");
+        }
+    }
+
+    /**
+     * Sends a call to the dispatcher without waiting for the reply.
+     */
+    private ByteArrayOutputStream send(ServiceDispatcher dispatcher, List<HessianFuture<Void>> written, String method, Object... args) 
+            throws Exception
+    {
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        Hessian2Output out = new Hessian2Output(request);
+        out.call(method, args);
+        out.close();
+        
+        ByteArrayOutputStream reply = new ByteArrayOutputStream();
+        written.add(dispatcher.invoke(new ByteArrayInputStream(request.toByteArray()), reply, null));
+        return reply;
+    }
+
+    private Object readReply(ByteArrayOutputStream reply) throws Throwable
+    {
+        ByteArrayInputStream is = new ByteArrayInputStream(reply.toByteArray());
+        assertEquals('H', is.read());
+        is.read();
+        is.read();
+        return new Hessian2Input(is).readReply(Object.class);
+    }
+
+    private Object call(ServiceDispatcher dispatcher, String method, Object... args) throws Throwable
+    {
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        Hessian2Output out = new Hessian2Output(request);
+        out.call(method, args);
+        out.close();
+        
+        ByteArrayOutputStream reply = new ByteArrayOutputStream();
+        dispatcher.invoke(new ByteArrayInputStream(request.toByteArray()), reply, null).get();
+        
+        ByteArrayInputStream is = new ByteArrayInputStream(reply.toByteArray());
+        assertEquals('H', is.read());
+        is.read();
+        is.read();
+        return new Hessian2Input(is).readReply(Object.class);
+    }
+
+    @Test
+    public void testEcho() throws Throwable
+    {
+        ServiceDispatcher dispatcher = new ServiceDispatcher(EchoService.class, new EchoServiceImpl());
+        assertEquals("Hello Hessian!", call(dispatcher, "echo", "Hello Hessian!"));
+    }
+
+    @Test
+    public void testHessian1() throws Throwable
+    {
+        ServiceDispatcher dispatcher = new ServiceDispatcher(EchoService.class, new EchoServiceImpl());
+        
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        HessianOutput out = new HessianOutput(request);
+        out.call("echo", new Object[] { "Hello Hessian!" });
+        out.close();
+        
+        ByteArrayOutputStream reply = new ByteArrayOutputStream();
+        dispatcher.invoke(new ByteArrayInputStream(request.toByteArray()), reply, null);
+        
+        HessianInput in = new HessianInput(new ByteArrayInputStream(reply.toByteArray()));
+        assertEquals("Hello Hessian!", in.readReply(String.class));
+    }
+
+    @Test
+    public void testOverloadedMethods() throws Throwable
+    {
+        ServiceDispatcher dispatcher = new ServiceDispatcher(Calculator.class, new CalculatorImpl());
+        
+        String intAdd = AbstractSkeleton.mangleName(Calculator.class.getMethod("add", int.class, int.class), false);
+        String doubleAdd = AbstractSkeleton.mangleName(Calculator.class.getMethod("add", double.class, double.class), false);
+        
+        assertEquals(3, call(dispatcher, intAdd, 1, 2));
+        assertEquals(3.5, call(dispatcher, doubleAdd, 1.5, 2.0));
+    }
+
+    @Test
+    public void testException() throws Throwable
+    {
+        ServiceDispatcher dispatcher = new ServiceDispatcher(EchoService.class, new EchoServiceImpl());
+        try
+        {
+            call(dispatcher, "exception", "Hello Hessian!");
+            fail("No exception thrown");
+        }
+        catch (Exception e)
+        {
+            assertEquals("Hello Hessian!", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testNoSuchMethod() throws Throwable
+    {
+        ServiceDispatcher dispatcher = new ServiceDispatcher(EchoService.class, new EchoServiceImpl());
+        try
+        {
+            call(dispatcher, "unknown");
+            fail("No exception thrown");
+        }
+        catch (Exception e)
+        {
+            assertTrue(e.getMessage().contains("unknown"));
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidImplementation()
+    {
+        new ServiceDispatcher(EchoService.class, new CalculatorImpl());
+    }
+
+    @Test
+    public void testAsynchronousMethod() throws Throwable
+    {
+        ServiceDispatcher dispatcher = new ServiceDispatcher(org.resthub.rpc.service.async.EchoService.class, 
+                new org.resthub.rpc.service.async.EchoServiceImpl(200));
+        
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        Hessian2Output out = new Hessian2Output(request);
+        out.call("echo", new Object[] { "Hello Hessian!" });
+        out.close();
+        
+        ByteArrayOutputStream reply = new ByteArrayOutputStream();
+        HessianFuture<Void> written = dispatcher.invoke(new ByteArrayInputStream(request.toByteArray()), reply, null);
+        assertFalse(written.isDone());
+        written.get();
+        
+        ByteArrayInputStream is = new ByteArrayInputStream(reply.toByteArray());
+        assertEquals('H', is.read());
+        is.read();
+        is.read();
+        assertEquals("Hello Hessian!", new Hessian2Input(is).readReply(String.class));
+    }
+
+    @Test
+    public void testAsynchronousException() throws Throwable
+    {
+        ServiceDispatcher dispatcher = new ServiceDispatcher(org.resthub.rpc.service.async.EchoService.class, 
+                new org.resthub.rpc.service.async.EchoServiceImpl(0));
+        try
+        {
+            call(dispatcher, "exception", "Hello Hessian!");
+            fail("No exception thrown");
+        }
+        catch (Exception e)
+        {
+            assertEquals("Hello Hessian!", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testBatchedMethod() throws Throwable
+    {
+        PersonServiceImpl service = new PersonServiceImpl();
+        ServiceDispatcher dispatcher = new ServiceDispatcher(PersonService.class, service);
+        
+        List<HessianFuture<Void>> written = new ArrayList<HessianFuture<Void>>();
+        ByteArrayOutputStream first = send(dispatcher, written, "findById", 1L);
+        ByteArrayOutputStream second = send(dispatcher, written, "findById", 2L);
+        ByteArrayOutputStream duplicate = send(dispatcher, written, "findById", 1L);
+        for (HessianFuture<Void> reply : written)
+        {
+            reply.get();
+        }
+        
+        // a single batch with the distinct keys
+        assertEquals(1, service.batches.size());
+        assertEquals(Arrays.asList(1L, 2L), service.batches.get(0));
+        assertEquals("person1", readReply(first));
+        assertEquals("person2", readReply(second));
+        assertEquals("person1", readReply(duplicate));
+    }
+
+    @Test
+    public void testBatchedMethodMap() throws Throwable
+    {
+        ServiceDispatcher dispatcher = new ServiceDispatcher(PersonService.class, new PersonServiceImpl());
+        
+        // the full batch is executed immediately, the missing keys have a null result
+        List<HessianFuture<Void>> written = new ArrayList<HessianFuture<Void>>();
+        ByteArrayOutputStream first = send(dispatcher, written, "findByName", "first");
+        ByteArrayOutputStream second = send(dispatcher, written, "findByName", "second");
+        assertTrue(written.get(1).isDone());
+        assertEquals("person", readReply(first));
+        assertEquals(null, readReply(second));
+        
+        // all the calls of a failed batch fail
+        written.clear();
+        ByteArrayOutputStream failed = send(dispatcher, written, "findByName", "failure");
+        ByteArrayOutputStream other = send(dispatcher, written, "findByName", "other");
+        for (ByteArrayOutputStream reply : Arrays.asList(failed, other))
+        {
+            try
+            {
+                readReply(reply);
+                fail("No exception thrown");
+            }
+            catch (Exception e)
+            {
+                assertEquals("No person named failure", e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void testBatchedMethodExecutor() throws Throwable
+    {
+        PersonServiceImpl service = new PersonServiceImpl();
+        ServiceDispatcher dispatcher = new ServiceDispatcher(PersonService.class, service);
+        
+        // the batch flushed after the delay is handed to the executor
+        final List<Runnable> tasks = Collections.synchronizedList(new ArrayList<Runnable>());
+        dispatcher.setExecutor(new Executor()
+        {
+            public void execute(Runnable task)
+            {
+                tasks.add(task);
+            }
+        });
+        List<HessianFuture<Void>> written = new ArrayList<HessianFuture<Void>>();
+        ByteArrayOutputStream reply = send(dispatcher, written, "findById", 1L);
+        for (int i = 0; i < 100 && tasks.isEmpty(); i++)
+        {
+            Thread.sleep(20);
+        }
+        assertEquals(1, tasks.size());
+        assertFalse(written.get(0).isDone());
+        
+        tasks.get(0).run();
+        written.get(0).get();
+        assertEquals("person1", readReply(reply));
+    }
+
+    @Test
+    public void testBatchedMethodDestroy() throws Throwable
+    {
+        ServiceDispatcher dispatcher = new ServiceDispatcher(PersonService.class, new PersonServiceImpl());
+        
+        // the pending batch is executed when the dispatcher is destroyed
+        List<HessianFuture<Void>> written = new ArrayList<HessianFuture<Void>>();
+        ByteArrayOutputStream first = send(dispatcher, written, "findByName", "first");
+        assertFalse(written.get(0).isDone());
+        dispatcher.destroy();
+        assertTrue(written.get(0).isDone());
+        assertEquals("person", readReply(first));
+        
+        // the calls received afterwards aren't batched
+        ByteArrayOutputStream second = send(dispatcher, written, "findByName", "second");
+        assertTrue(written.get(1).isDone());
+        assertEquals("person", readReply(second));
+    }
+}
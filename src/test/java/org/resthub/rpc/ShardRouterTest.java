@@ -0,0 +1,82 @@
+/**
+ * Copyright 2013 resthub.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.resthub.rpc;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+public class ShardRouterTest
+{
+    @Test
+    public void testShardNames()
+    {
+        String[] names = ShardRouter.getShardNames("EchoService", 3);
+        assertEquals(3, names.length);
+        assertEquals("EchoService.0", names[0]);
+        assertEquals("EchoService.2", names[2]);
+        
+        // not sharded
+        assertEquals("EchoService", ShardRouter.getShardNames("EchoService", 0)[0]);
+        assertEquals(1, ShardRouter.getShardNames("EchoService", 1).length);
+    }
+
+    @Test
+    public void testKeyRouting()
+    {
+        ShardRouter router = new ShardRouter("EchoService", 4);
+        
+        // the same key is always routed to the same shard
+        String routingKey = router.getRoutingKey(new Object[] { 1, "key" }, 1);
+        for (int i = 0; i < 10; i++)
+        {
+            assertEquals(routingKey, router.getRoutingKey(new Object[] { i, "key" }, 1));
+        }
+        
+        // enums are routed by name
+        assertEquals(ShardRouter.getShard("SECONDS", 4), ShardRouter.getShard(TimeUnit.SECONDS, 4));
+        assertEquals(ShardRouter.getShard(null, 4), ShardRouter.getShard(null, 4));
+    }
+
+    @Test
+    public void testKeyDistribution()
+    {
+        // keys multiple of the number of shards are spread too
+        int[] counts = new int[4];
+        for (int i = 0; i < 4000; i += 4)
+        {
+            counts[ShardRouter.getShard(i, 4)]++;
+        }
+        for (int count : counts)
+        {
+            assertTrue(count > 150);
+        }
+    }
+
+    @Test
+    public void testRoundRobin()
+    {
+        ShardRouter router = new ShardRouter("EchoService", 3);
+        
+        assertEquals("EchoService.0", router.getRoutingKey(new Object[0], -1));
+        assertEquals("EchoService.1", router.getRoutingKey(new Object[0], -1));
+        assertEquals("EchoService.2", router.getRoutingKey(new Object[0], -1));
+        assertEquals("EchoService.0", router.getRoutingKey(null, -1));
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ * Copyright 2013 resthub.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.resthub.rpc;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+import static org.testng.AssertJUnit.fail;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import org.resthub.rpc.service.EchoService;
+import org.resthub.rpc.service.EchoServiceImpl;
+import org.springframework.amqp.core.Message;
+import org.testng.annotations.Test;
+
+import com.caucho.hessian.client.HessianRuntimeException;
+
+public class SingleFlightTest
+{
+    /**
+     * Client view of the echo service sharing the calls in flight.
+     */
+    public interface SharedEchoService
+    {
+        @SingleFlight
+        HessianFuture<String> echo(String message);
+    }
+
+    /**
+     * Synchronous client view of the echo service sharing the calls in flight.
+     */
+    public interface SharedSyncEchoService
+    {
+        @SingleFlight
+        String echo(String message);
+    }
+
+    /**
+     * Factory keeping the requests in flight until they are replied by the test.
+     */
+    private static class TestFactory extends AMQPHessianProxyFactory
+    {
+        private final RawMessageDelegate delegate = new RawMessageDelegate(EchoService.class, new EchoServiceImpl(), null);
+        private final List<Message> sent = new ArrayList<Message>();
+        private final List<HessianFuture<Message>> replies = new ArrayList<HessianFuture<Message>>();
+
+        @Override
+        HessianFuture<Message> sendRequestAsync(MethodDescriptor method, String routingKey, String service, byte[] payload) 
+                throws IOException
+        {
+            sent.add(createRequestMessage(service, payload, false, method.getTimeout(), null));
+            HessianFuture<Message> reply = new HessianFuture<Message>();
+            replies.add(reply);
+            return reply;
+        }
+
+        void reply(int index)
+        {
+            replies.get(index).set(delegate.handleMessage(sent.get(index)));
+        }
+    }
+
+    private <T> T createService(TestFactory factory, Class<T> api)
+    {
+        factory.setServiceInterface(api);
+        return api.cast(Proxy.newProxyInstance(api.getClassLoader(), new Class[] { api }, new AMQPHessianProxy(factory)));
+    }
+
+    @Test
+    public void testSharedRequest() throws Exception
+    {
+        TestFactory factory = new TestFactory();
+        SharedEchoService service = createService(factory, SharedEchoService.class);
+        
+        HessianFuture<String> first = service.echo("Hello Hessian");
+        HessianFuture<String> second = service.echo("Hello Hessian");
+        HessianFuture<String> other = service.echo("Hello AMQP");
+        
+        // a single request for the identical calls
+        assertEquals(2, factory.sent.size());
+        
+        factory.reply(0);
+        assertEquals("Hello Hessian", first.get());
+        assertEquals("Hello Hessian", second.get());
+        assertFalse(other.isDone());
+        
+        // the completed request isn't shared anymore
+        service.echo("Hello Hessian");
+        assertEquals(3, factory.sent.size());
+    }
+
+    @Test
+    public void testSharedFailure() throws Exception
+    {
+        TestFactory factory = new TestFactory();
+        SharedEchoService service = createService(factory, SharedEchoService.class);
+        
+        HessianFuture<String> first = service.echo("Hello Hessian");
+        HessianFuture<String> second = service.echo("Hello Hessian");
+        factory.replies.get(0).setException(new TimeoutException());
+        
+        for (HessianFuture<String> result : new HessianFuture[] { first, second })
+        {
+            try
+            {
+                result.get();
+                fail("No exception thrown");
+            }
+            catch (ExecutionException e)
+            {
+                assertTrue(e.getCause() instanceof TimeoutException);
+            }
+        }
+        
+        service.echo("Hello Hessian");
+        assertEquals(2, factory.sent.size());
+    }
+
+    @Test
+    public void testInterrupted() throws Exception
+    {
+        TestFactory factory = new TestFactory();
+        SharedSyncEchoService service = createService(factory, SharedSyncEchoService.class);
+        
+        Thread.currentThread().interrupt();
+        try
+        {
+            service.echo("Hello Hessian");
+            fail("No exception thrown");
+        }
+        catch (HessianRuntimeException e)
+        {
+            assertTrue(e.getCause() instanceof InterruptedException);
+        }
+        finally
+        {
+            // the interrupt flag is restored
+            assertTrue(Thread.interrupted());
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright 2013 resthub.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.resthub.rpc.compression;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.testng.annotations.Test;
+
+public class CompressionCodecsTest
+{
+    private byte[] createData()
+    {
+        byte[] data = new byte[10000];
+        for (int i = 0; i < data.length; i++)
+        {
+            data[i] = (byte) (i % 17);
+        }
+        return data;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        CompressionCodecs codecs = new CompressionCodecs();
+        byte[] data = createData();
+        
+        for (String encoding : Arrays.asList(DeflateCodec.ENCODING, LZ4Codec.ENCODING))
+        {
+            CompressionCodec codec = codecs.getRequired(encoding);
+            byte[] compressed = codec.compress(data);
+            assertTrue(encoding, compressed.length < data.length);
+            assertTrue(encoding, Arrays.equals(data, codec.decompress(compressed)));
+        }
+        
+        codecs.destroy();
+    }
+
+    @Test
+    public void testEmpty() throws Exception
+    {
+        LZ4Codec codec = new LZ4Codec();
+        assertEquals(0, codec.decompress(codec.compress(new byte[0])).length);
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testInvalidLZ4Block() throws Exception
+    {
+        LZ4Codec codec = new LZ4Codec();
+        byte[] compressed = codec.compress(createData());
+        compressed[0] = 0x7F;
+        codec.decompress(compressed);
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testTruncatedLZ4Block() throws Exception
+    {
+        LZ4Codec codec = new LZ4Codec();
+        byte[] compressed = codec.compress(createData());
+        codec.decompress(Arrays.copyOf(compressed, compressed.length / 2));
+    }
+
+    @Test
+    public void testNegotiation() throws Exception
+    {
+        CompressionCodecs codecs = new CompressionCodecs();
+        
+        assertEquals("lz4,deflate", codecs.getAcceptEncoding("lz4"));
+        assertEquals("deflate,lz4", codecs.getAcceptEncoding("deflate"));
+        assertEquals("lz4", codecs.negotiate("snappy, lz4, deflate"));
+        assertNull(codecs.negotiate("snappy"));
+        assertNull(codecs.get("snappy"));
+        
+        codecs.destroy();
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testUnsupportedEncoding() throws Exception
+    {
+        new CompressionCodecs().getRequired("snappy");
+    }
+
+    @Test
+    public void testDictionary() throws Exception
+    {
+        CompressionCodecs codecs = new CompressionCodecs();
+        codecs.register(new CompressionDictionary("test", "org.resthub.rpc.service.EchoService".getBytes("UTF-8")));
+        byte[] data = "echo org.resthub.rpc.service.EchoService".getBytes("UTF-8");
+        
+        CompressionCodec codec = codecs.getRequired(DeflateCodec.ENCODING, "test");
+        byte[] compressed = codec.compress(data);
+        assertTrue(compressed.length < codecs.get(DeflateCodec.ENCODING).compress(data).length);
+        assertTrue(Arrays.equals(data, codec.decompress(compressed)));
+        
+        assertTrue(codecs.hasDictionary("test"));
+        assertEquals(LZ4Codec.ENCODING, codecs.get(LZ4Codec.ENCODING, "test").getEncoding());
+        assertNull(codecs.get(DeflateCodec.ENCODING, "unknown"));
+        
+        codecs.destroy();
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testUnknownDictionary() throws Exception
+    {
+        new CompressionCodecs().getRequired(DeflateCodec.ENCODING, "unknown");
+    }
+}
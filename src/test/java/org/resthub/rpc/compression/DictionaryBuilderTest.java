@@ -0,0 +1,92 @@
+/**
+ * Copyright 2013 resthub.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.resthub.rpc.compression;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+import com.caucho.hessian.io.Hessian2Output;
+
+public class DictionaryBuilderTest
+{
+    private byte[] createSample(Random random) throws Exception
+    {
+        Map<String, Object> person = new HashMap<String, Object>();
+        person.put("firstName", "John" + random.nextInt(1000));
+        person.put("lastName", "Doe" + random.nextInt(1000));
+        person.put("emailAddress", "john.doe" + random.nextInt(1000) + "@example.org");
+        person.put("age", random.nextInt(100));
+        
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        Hessian2Output out = new Hessian2Output(os);
+        out.call("savePersonWithAddress", new Object[] { person, "org.resthub.rpc.service.Address" });
+        out.close();
+        return os.toByteArray();
+    }
+
+    @Test
+    public void testBuild() throws Exception
+    {
+        Random random = new Random(42);
+        DictionaryBuilder builder = new DictionaryBuilder();
+        for (int i = 0; i < 100; i++)
+        {
+            builder.addSample(createSample(random));
+        }
+        
+        byte[] dictionary = builder.build(1024);
+        assertTrue(dictionary.length > 0);
+        assertTrue(dictionary.length <= 1024);
+        
+        ZlibPool plain = new ZlibPool();
+        ZlibPool preset = new ZlibPool(-1, 1, dictionary);
+        byte[] sample = createSample(random);
+        byte[] compressed = preset.compress(sample);
+        
+        assertTrue(compressed.length < plain.compress(sample).length);
+        assertTrue(Arrays.equals(sample, preset.decompress(compressed)));
+        
+        plain.destroy();
+        preset.destroy();
+    }
+
+    @Test
+    public void testMaximumSize() throws Exception
+    {
+        Random random = new Random(42);
+        DictionaryBuilder builder = new DictionaryBuilder();
+        for (int i = 0; i < 100; i++)
+        {
+            builder.addSample(createSample(random));
+        }
+        
+        assertEquals(100, builder.build(100).length);
+    }
+
+    @Test
+    public void testEmptySample() throws Exception
+    {
+        assertEquals(0, new DictionaryBuilder().build(1024).length);
+    }
+}
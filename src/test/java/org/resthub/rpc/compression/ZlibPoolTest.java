@@ -0,0 +1,134 @@
+/**
+ * Copyright 2013 resthub.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.resthub.rpc.compression;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNotSame;
+import static org.testng.AssertJUnit.assertSame;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.testng.annotations.Test;
+
+public class ZlibPoolTest
+{
+    @Test
+    public void testReuse() throws Exception
+    {
+        ZlibPool pool = new ZlibPool(Deflater.DEFAULT_COMPRESSION, 1);
+        
+        Deflater deflater = pool.acquireDeflater();
+        pool.releaseDeflater(deflater);
+        assertSame(deflater, pool.acquireDeflater());
+        
+        Inflater inflater = pool.acquireInflater();
+        pool.releaseInflater(inflater);
+        assertSame(inflater, pool.acquireInflater());
+        
+        pool.destroy();
+    }
+
+    @Test
+    public void testDestroy() throws Exception
+    {
+        ZlibPool pool = new ZlibPool();
+        
+        Deflater deflater = pool.acquireDeflater();
+        pool.destroy();
+        pool.releaseDeflater(deflater);
+        
+        assertNotSame(deflater, pool.acquireDeflater());
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        ZlibPool pool = new ZlibPool();
+        String message = "Hello Hessian!";
+        
+        // the second round trip uses the instances reset by the first one
+        for (int i = 0; i < 2; i++)
+        {
+            assertEquals(message, new String(inflate(pool, deflate(pool, message.getBytes("UTF-8"))), "UTF-8"));
+        }
+        
+        pool.destroy();
+    }
+
+    @Test
+    public void testCompress() throws Exception
+    {
+        ZlibPool pool = new ZlibPool();
+        StringBuilder message = new StringBuilder();
+        for (int i = 0; i < 1000; i++)
+        {
+            message.append("Hello Hessian! ");
+        }
+        byte[] data = message.toString().getBytes("UTF-8");
+        
+        byte[] compressed = pool.compress(data);
+        assertTrue(compressed.length < data.length);
+        assertEquals(message.toString(), new String(pool.decompress(compressed), "UTF-8"));
+        assertEquals(message.toString(), new String(inflate(pool, compressed), "UTF-8"));
+        
+        pool.destroy();
+    }
+
+    private byte[] deflate(ZlibPool pool, byte[] data) throws IOException
+    {
+        Deflater deflater = pool.acquireDeflater();
+        try
+        {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            DeflaterOutputStream out = new DeflaterOutputStream(bout, deflater);
+            out.write(data);
+            out.finish();
+            return bout.toByteArray();
+        }
+        finally
+        {
+            pool.releaseDeflater(deflater);
+        }
+    }
+
+    private byte[] inflate(ZlibPool pool, byte[] data) throws IOException
+    {
+        Inflater inflater = pool.acquireInflater();
+        try
+        {
+            InflaterInputStream in = new InflaterInputStream(new ByteArrayInputStream(data), inflater);
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            byte[] buffer = new byte[256];
+            int length;
+            while ((length = in.read(buffer)) != -1)
+            {
+                bout.write(buffer, 0, length);
+            }
+            return bout.toByteArray();
+        }
+        finally
+        {
+            pool.releaseInflater(inflater);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright 2013 resthub.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.resthub.rpc.example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.resthub.rpc.AMQPHessianProxyFactory;
+import org.resthub.rpc.HessianEndpoint;
+import org.resthub.rpc.service.EchoService;
+import org.resthub.rpc.service.EchoServiceImpl;
+import org.springframework.amqp.core.AcknowledgeMode;
+import org.springframework.amqp.rabbit.connection.CachingConnectionFactory;
+
+/**
+ * Measures the throughput and the latency of the echo service with the
+ * consumer settings of the endpoint. Requires a RabbitMQ broker on localhost.
+ * 
+ * Usage: EchoBenchmark [prefetchCount] [txSize] [acknowledgeMode] [clientThreads] [calls]
+ */
+public class EchoBenchmark {
+    
+    public static void main(String[] args) throws Exception {
+        int prefetchCount = args.length > 0 ? Integer.parseInt(args[0]) : 1;
+        int txSize = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+        AcknowledgeMode acknowledgeMode = args.length > 2 ? AcknowledgeMode.valueOf(args[2]) : AcknowledgeMode.MANUAL;
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+        final int calls = args.length > 4 ? Integer.parseInt(args[4]) : 10000;
+        
+        CachingConnectionFactory connectionFactory = new CachingConnectionFactory("localhost", 5672);
+        connectionFactory.setUsername("guest");
+        connectionFactory.setPassword("guest");
+        connectionFactory.setChannelCacheSize(threads);
+        
+        HessianEndpoint endpoint = new HessianEndpoint(new EchoServiceImpl());
+        endpoint.setConnectionFactory(connectionFactory);
+        endpoint.setPrefetchCount(prefetchCount);
+        endpoint.setTxSize(txSize);
+        endpoint.setAcknowledgeMode(acknowledgeMode);
+        endpoint.run();
+        
+        AMQPHessianProxyFactory factory = new AMQPHessianProxyFactory();
+        factory.setConnectionFactory(connectionFactory);
+        factory.setReadTimeout(10000);
+        final EchoService service = factory.create(EchoService.class);
+        
+        // warm up
+        for (int i = 0; i < 1000; i++) {
+            service.echo("Hello AMQP!");
+        }
+        
+        ExecutorService clients = Executors.newFixedThreadPool(threads);
+        List<Future<long[]>> results = new ArrayList<Future<long[]>>();
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            results.add(clients.submit(new Callable<long[]>() {
+                public long[] call() {
+                    long[] latencies = new long[calls];
+                    for (int i = 0; i < calls; i++) {
+                        long callStart = System.nanoTime();
+                        service.echo("Hello AMQP!");
+                        latencies[i] = System.nanoTime() - callStart;
+                    }
+                    return latencies;
+                }
+            }));
+        }
+        
+        long[] latencies = new long[threads * calls];
+        for (int t = 0; t < threads; t++) {
+            System.arraycopy(results.get(t).get(), 0, latencies, t * calls, calls);
+        }
+        long elapsed = System.nanoTime() - start;
+        Arrays.sort(latencies);
+        
+        System.out.println("prefetchCount=" + prefetchCount + " txSize=" + txSize + " acknowledgeMode=" + acknowledgeMode 
+                + " threads=" + threads);
+        System.out.println("Throughput: " + (latencies.length * 1000000000L / elapsed) + " calls/s");
+        System.out.println("Latency: p50=" + latencies[latencies.length / 2] / 1000 + "us"
+                + " p99=" + latencies[latencies.length * 99 / 100] / 1000 + "us"
+                + " max=" + latencies[latencies.length - 1] / 1000 + "us");
+        
+        clients.shutdown();
+        endpoint.destroy();
+        factory.destroy();
+        connectionFactory.destroy();
+    }
+}
@@ -17,6 +17,8 @@
 
 package org.resthub.rpc.service;
 
+import org.resthub.rpc.ShardKey;
+
 /**
  * Echo service interface.
  * 
@@ -24,7 +26,7 @@ package org.resthub.rpc.service;
  */
 public interface EchoService
 {
-    String echo(String message);
+    String echo(@ShardKey String message);
     
     void exception(String message) throws Exception;
     
@@ -0,0 +1,31 @@
+/**
+ * Copyright 2013 resthub.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.resthub.rpc.service.async;
+
+import java.util.concurrent.Future;
+
+/**
+ * Asynchronous client view of the echo service. The interface has the same
+ * name as {@link org.resthub.rpc.service.EchoService} to be routed to the
+ * same endpoint.
+ */
+public interface EchoService
+{
+    Future<String> echo(String message);
+    
+    Future<Void> exception(String message);
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright 2013 resthub.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.resthub.rpc.service.async;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Future;
+
+import org.resthub.rpc.HessianFuture;
+
+/**
+ * Asynchronous implementation of the echo service, the replies are
+ * completed by a timer thread after a delay.
+ */
+public class EchoServiceImpl implements EchoService
+{
+    private static final Timer timer = new Timer(true);
+    
+    private final long delay;
+    
+    public EchoServiceImpl(long delay)
+    {
+        this.delay = delay;
+    }
+    
+    public Future<String> echo(final String message)
+    {
+        final HessianFuture<String> future = new HessianFuture<String>();
+        timer.schedule(new TimerTask()
+        {
+            public void run()
+            {
+                future.set(message);
+            }
+        }, delay);
+        return future;
+    }
+    
+    public Future<Void> exception(final String message)
+    {
+        final HessianFuture<Void> future = new HessianFuture<Void>();
+        timer.schedule(new TimerTask()
+        {
+            public void run()
+            {
+                future.setException(new Exception(message));
+            }
+        }, delay);
+        return future;
+    }
+}